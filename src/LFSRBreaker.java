@@ -18,10 +18,44 @@
 
  // Note to self: learn to write comments in code.
 
-import java.awt.Color;
-import java.util.Stack;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 
 public class LFSRBreaker {
+    // Right-hand-side columns of a trial's linear system. The zero hypothesis assumes the plaintext
+    // primary bits of the sampled cluster are all 0, the one hypothesis that they are all 1.
+    private static final int ZERO_HYPOTHESIS = 0, ONE_HYPOTHESIS = 1;
+    // The bit of each color value that the attack reads, its most significant one.
+    private static final int PRIMARY_BIT = 7;
+    // Password lengths are ranked on this many feedback checks, and searched first if one of their tap
+    // positions scores at least this many standard deviations.
+    private static final int LENGTH_SCAN_CHECKS = 1 << 16;
+    private static final double LENGTH_SCAN_DEVIATIONS = 6;
+    // Image files are decrypted in bands of whole pixel columns that hold at most this many bytes of keystream,
+    // and need be no wider than to cover this many bytes of each file row.
+    private static final int MAPPED_BAND_BYTES = 1 << 24, MAPPED_RUN_BYTES = 1 << 12;
+
     /* Main client function. Given the password length and the encrypted image, it returns the decrypted image.
      * Returns null if the algorithm could not find any candidate passwords.
      * 
@@ -46,369 +80,2747 @@ public class LFSRBreaker {
         return decryptImage(passwordLength, encryptedImage, 10, printLog);
     }
 
-    /* Overloaded client function with all custom parameters. Given the password length, the encrypted image,
-     * and the number of retries the program should execute for each candidate tap position, it returns the decrypted image.
-     * Returns null if the algorithm could not find any candidate passwords.
-     * 
-     * @param passwordLength The length of the password.
-     * @param encryptedImage The encrypted image.
-     * @param numRetries The number of retries per candidate tap position.
-     * @param printLog If set to true, the program outputs a password search log to standard output.
-     * @return Picture The decrypted image.
-     */
+    /* Overloaded client function with custom retries. Given the password length, the encrypted image,
+     * and the number of retries the program should execute for each candidate tap position, it returns the decrypted image.
+     * The search runs on the common ForkJoin pool.
+     * Returns null if the algorithm could not find any candidate passwords.
+     * 
+     * @param passwordLength The length of the password.
+     * @param encryptedImage The encrypted image.
+     * @param numRetries The number of retries per candidate tap position.
+     * @param printLog If set to true, the program outputs a password search log to standard output.
+     * @return Picture The decrypted image.
+     */
+    public static Picture decryptImage(int passwordLength, Picture encryptedImage, int numRetries, boolean printLog) {
+        return decryptImage(passwordLength, encryptedImage, numRetries, printLog, ForkJoinPool.commonPool());
+    }
+
+    /* Overloaded client function with a custom executor. Given the password length, the encrypted image,
+     * the number of retries the program should execute for each candidate tap position, and the executor
+     * to run the search on, it returns the decrypted image. The search is seeded randomly; the seed is
+     * printed with the log so that the run can be reproduced.
+     * Returns null if the algorithm could not find any candidate passwords.
+     * 
+     * @param passwordLength The length of the password.
+     * @param encryptedImage The encrypted image.
+     * @param numRetries The number of retries per candidate tap position.
+     * @param printLog If set to true, the program outputs a password search log to standard output.
+     * @param executor The executor that runs the trials and the final decryption.
+     * @return Picture The decrypted image.
+     */
+    public static Picture decryptImage(int passwordLength, Picture encryptedImage, int numRetries, boolean printLog,
+                                       Executor executor) {
+        return decryptImage(passwordLength, encryptedImage, numRetries, printLog, executor, new SplittableRandom().nextLong());
+    }
+
+    /* Overloaded client function with a fixed seed. Given the password length, the encrypted image,
+     * the number of retries the program should execute for each candidate tap position, and a seed, it
+     * returns the decrypted image. Runs with the same seed give the same result.
+     * The search runs on the common ForkJoin pool.
+     * Returns null if the algorithm could not find any candidate passwords.
+     * 
+     * @param passwordLength The length of the password.
+     * @param encryptedImage The encrypted image.
+     * @param numRetries The number of retries per candidate tap position.
+     * @param printLog If set to true, the program outputs a password search log to standard output.
+     * @param seed The seed of the random trial starts.
+     * @return Picture The decrypted image.
+     */
+    public static Picture decryptImage(int passwordLength, Picture encryptedImage, int numRetries, boolean printLog,
+                                       long seed) {
+        return decryptImage(passwordLength, encryptedImage, numRetries, printLog, ForkJoinPool.commonPool(), seed);
+    }
+
+    /* Overloaded client function with all custom parameters. Given the password length, the encrypted image,
+     * the number of retries the program should execute for each candidate tap position, the executor
+     * to run the search on, and a seed, it returns the decrypted image. Every trial of every tap position
+     * is submitted to the executor as an independent task. Each trial draws from its own random stream,
+     * derived from the seed, the tap position and the trial number, and the search only looks at the
+     * candidates found so far between rounds of trials, so the result does not depend on the executor:
+     * a parallel run gives the same key as a serial run with the same seed.
+     * Returns null if the algorithm could not find any candidate passwords.
+     * 
+     * @param passwordLength The length of the password.
+     * @param encryptedImage The encrypted image.
+     * @param numRetries The number of retries per candidate tap position.
+     * @param printLog If set to true, the program outputs a password search log to standard output.
+     * @param executor The executor that runs the trials and the final decryption.
+     * @param seed The seed of the random trial starts.
+     * @return Picture The decrypted image.
+     */
+    public static Picture decryptImage(int passwordLength, Picture encryptedImage, int numRetries, boolean printLog,
+                                       Executor executor, long seed) {
+        SearchOptions options = new SearchOptions().setNumRetries(numRetries).setPrintLog(printLog)
+                .setExecutor(executor).setSeed(seed);
+        return decryptImage(passwordLength, encryptedImage, options);
+    }
+
+    /* Overloaded client function taking every search parameter from a SearchOptions object. Given the
+     * password length, the encrypted image, and the search options, it returns the decrypted image.
+     * Returns null if the algorithm could not find any candidate passwords.
+     * 
+     * @param passwordLength The length of the password.
+     * @param encryptedImage The encrypted image.
+     * @param options The search options.
+     * @return Picture The decrypted image.
+     */
+    public static Picture decryptImage(int passwordLength, Picture encryptedImage, SearchOptions options) {
+        PixelArray image = pictureToArray(encryptedImage);
+        // Candidates are scored on the primary bits alone, so only those are extracted up front.
+        BitBuffer primaryBits = image.getBitPlane(PRIMARY_BIT);
+        TapDistinguisher distinguisher = new TapDistinguisher(primaryBits, primaryBitCount(image));
+        LFSRKey bestLFSR = new PasswordSearch(image.getNumRows(), image.getNumCols(), primaryBits, distinguisher,
+                passwordLength, options).run();
+        if (bestLFSR == null) {
+            return null;
+        }
+        // Only the winning key is used to decrypt the full image.
+        return useLFSR(image, bestLFSR, options.executor);
+    }
+
+    /* Client function for an unknown password length. Given the encrypted image, a range of candidate
+     * password lengths, and the search options, it ranks every length by how strongly the ciphertext follows
+     * an LFSR recurrence of that length, then searches the lengths that stand out from the highest score
+     * down and stops at the first one whose best key is convincing: confirmed by a second trial, or by
+     * the bits the correlation attack held out, and far better than noise. If none is, every other length
+     * in the range is searched too, and the key that decrypts best is kept. The image is converted and
+     * analyzed once for all lengths.
+     * Returns null if the algorithm could not find any candidate passwords.
+     * 
+     * @param encryptedImage The encrypted image.
+     * @param minPasswordLength The shortest password length to consider, at least 2.
+     * @param maxPasswordLength The longest password length to consider.
+     * @param options The search options.
+     * @return DecryptionResult The password, tap position and password length, with the decrypted image.
+     */
+    public static DecryptionResult decryptImageOfUnknownLength(Picture encryptedImage, int minPasswordLength,
+                                                               int maxPasswordLength, SearchOptions options) {
+        if (minPasswordLength < 2 || maxPasswordLength < minPasswordLength) {
+            throw new IllegalArgumentException("Password lengths must satisfy 2 <= minPasswordLength <= maxPasswordLength");
+        }
+        PixelArray image = pictureToArray(encryptedImage);
+        BitBuffer primaryBits = image.getBitPlane(PRIMARY_BIT);
+        long numPrimaryBits = primaryBitCount(image);
+        TapDistinguisher distinguisher = new TapDistinguisher(primaryBits, numPrimaryBits);
+        // Ranking a length scores all of its tap positions, so lengths are ranked on a prefix of the image.
+        TapDistinguisher lengthDistinguisher = new TapDistinguisher(primaryBits,
+                Math.min(numPrimaryBits, (long) LENGTH_SCAN_CHECKS + maxPasswordLength));
+        double[] scores = new double[maxPasswordLength + 1];
+        List<Integer> likelyLengths = new ArrayList<>();
+        for (int passwordLength = minPasswordLength; passwordLength <= maxPasswordLength; ++passwordLength) {
+            for (int tapPos = 0; tapPos < passwordLength - 1; ++tapPos) {
+                scores[passwordLength] = Math.max(scores[passwordLength], lengthDistinguisher.score(passwordLength, tapPos));
+            }
+            if (scores[passwordLength] >= LENGTH_SCAN_DEVIATIONS) {
+                likelyLengths.add(passwordLength);
+                if (options.printLog) {
+                    System.out.println(String.format("Password length %d stands out with score %.1f.",
+                            passwordLength, scores[passwordLength]));
+                }
+            }
+        }
+        // Ties keep the shorter length first.
+        likelyLengths.sort((a, b) -> Double.compare(scores[b], scores[a]));
+        boolean[] searched = new boolean[maxPasswordLength + 1];
+        LFSRKey bestLFSR = null;
+        PasswordSearch bestSearch = null;
+        for (int likelyLength : likelyLengths) {
+            // The square of the feedback polynomial is a trinomial of twice the length that the ciphertext
+            // follows just as well, so halves of a likely length that stand out too are searched first.
+            int passwordLength = likelyLength;
+            while (passwordLength % 2 == 0 && passwordLength / 2 >= minPasswordLength
+                    && scores[passwordLength / 2] >= LENGTH_SCAN_DEVIATIONS) {
+                passwordLength /= 2;
+            }
+            for (; passwordLength <= likelyLength; passwordLength *= 2) {
+                if (searched[passwordLength]) {
+                    continue;
+                }
+                searched[passwordLength] = true;
+                PasswordSearch search = new PasswordSearch(image.getNumRows(), image.getNumCols(), primaryBits,
+                        distinguisher, passwordLength, options);
+                LFSRKey key = search.run();
+                if (key != null && (bestLFSR == null || search.getBestCost() < bestSearch.getBestCost())) {
+                    bestLFSR = key;
+                    bestSearch = search;
+                }
+                if (search.isConvincing()) {
+                    return new DecryptionResult(key, search.getConfidence(), useLFSR(image, key, options.executor));
+                }
+                if (options.printLog) {
+                    System.out.println(String.format("No convincing key for password length %d.", passwordLength));
+                }
+            }
+        }
+        if (options.printLog) {
+            System.out.println("No likely password length yields a convincing key. Searching every other length.");
+        }
+        for (int passwordLength = minPasswordLength; passwordLength <= maxPasswordLength; ++passwordLength) {
+            if (searched[passwordLength]) {
+                continue;
+            }
+            PasswordSearch search = new PasswordSearch(image.getNumRows(), image.getNumCols(), primaryBits,
+                    distinguisher, passwordLength, options);
+            LFSRKey key = search.run();
+            if (key != null && (bestLFSR == null || search.getBestCost() < bestSearch.getBestCost())) {
+                bestLFSR = key;
+                bestSearch = search;
+            }
+        }
+        if (bestLFSR == null) {
+            return null;
+        }
+        return new DecryptionResult(bestLFSR, bestSearch.getConfidence(), useLFSR(image, bestLFSR, options.executor));
+    }
+
+    /* Client function for image files too large for the heap. Given the password length, the name of an
+     * encrypted binary PPM (P6) or 24-bit uncompressed BMP file, the name of the file to write the decrypted
+     * image to, and the search options, it decrypts the image into a file of the same format, and copies
+     * every byte of the file that is not pixel data unchanged. Both files are memory-mapped, so pixels are
+     * read and written in place. The search copies the primary bit plane of
+     * the image, three bits per pixel, into a memory-mapped temporary file, so it needs up to about 800 MB
+     * of temporary disk space at the limit of 2^31 pixels, but not of heap. Candidates are scored as their
+     * keystream is generated, and the image is decrypted band by band, so heap use grows with the password
+     * length and the image height, not with the number of pixels. Images must have fewer than 2^31 pixels.
+     * Returns false, and writes nothing, if the algorithm could not find any candidate passwords. The
+     * decrypted file must not be the encrypted file, since it is written while the encrypted one is read.
+     * 
+     * @param passwordLength The length of the password.
+     * @param encryptedFilename The name of the encrypted image file.
+     * @param decryptedFilename The name of the file to write the decrypted image to.
+     * @param options The search options.
+     * @return boolean Whether a password was found and the image decrypted.
+     */
+    public static boolean decryptImageFile(int passwordLength, String encryptedFilename, String decryptedFilename,
+                                           SearchOptions options) {
+        MappedImage encryptedImage = MappedImage.open(encryptedFilename);
+        encryptedImage.checkCopyFile(decryptedFilename);
+        BitBuffer primaryBits = primaryBitPlane(encryptedImage);
+        TapDistinguisher distinguisher = new TapDistinguisher(primaryBits, primaryBits.getLength());
+        LFSRKey bestLFSR = new PasswordSearch(encryptedImage.getNumRows(), encryptedImage.getNumCols(), primaryBits,
+                distinguisher, passwordLength, options).run();
+        if (bestLFSR == null) {
+            return false;
+        }
+        MappedImage decryptedImage = encryptedImage.createCopy(decryptedFilename);
+        useLFSR(encryptedImage, decryptedImage, bestLFSR, options.executor);
+        decryptedImage.force();
+        return true;
+    }
+
+    // The outcome of a search with an unknown password length: the key that was found, how confident the
+    // search is in it, and the image it decrypts to.
+    public static class DecryptionResult {
+        private boolean[] binaryPassword;
+        private int tapPos;
+        private double confidence;
+        private Picture decryptedImage;
+
+        private DecryptionResult(LFSRKey key, double confidence, Picture decryptedImage) {
+            binaryPassword = key.binaryPassword.clone();
+            tapPos = key.tapPos;
+            this.confidence = confidence;
+            this.decryptedImage = decryptedImage;
+        }
+
+        public boolean[] getBinaryPassword() {
+            return binaryPassword.clone();
+        }
+
+        public int getPasswordLength() {
+            return binaryPassword.length;
+        }
+
+        public int getTapPosition() {
+            return tapPos;
+        }
+
+        // An estimate, between 0 and 1, of the probability that the key is not a wrong key that happened
+        // to decrypt to an unusually smooth image. It is 0 unless a second trial of the search found the
+        // key, or, for the correlation attack, the bits the decoder held out confirm it.
+        public double getConfidence() {
+            return confidence;
+        }
+
+        public Picture getDecryptedImage() {
+            return decryptedImage;
+        }
+    }
+
+    // How each trial turns a sample of the ciphertext into candidate keys.
+    public enum SolverMode {
+        // Enumerate every tap position and run Gaussian elimination over a square cluster of pixels.
+        GAUSSIAN,
+        // First run Berlekamp-Massey over runs of pixels that are adjacent in keystream order, which
+        // recovers the tap position and the password without enumerating taps. Runs go in rounds of
+        // doubling size until two of them find the best key. Falls back to GAUSSIAN if no run yields
+        // a candidate.
+        BERLEKAMP_MASSEY,
+        // Enumerate every tap position, but sample runs of pixels that are adjacent in keystream order.
+        // Their systems share one structure, so each tap position pays for one matrix inversion and each
+        // trial is then solved in O(N^2 / 64) word operations. Falls back to GAUSSIAN for tap positions
+        // whose runs cannot determine the password.
+        STRUCTURED,
+        // Like GAUSSIAN, but each trial collects twice as many pixels as it needs and looks for the key
+        // that agrees with the most of them, so a few pixels that break the cluster's pattern no longer
+        // spoil the trial.
+        RANSAC,
+        // Run a fast correlation attack on every tap position: the primary bits of vertically adjacent
+        // pixels give a noisy copy of a keystream-derived LFSR sequence across the whole image, which
+        // belief propagation decodes in one deterministic pass. Falls back to GAUSSIAN if no tap
+        // position yields a candidate.
+        CORRELATION
+    }
+
+    // Parameters of a password search. Every setter returns this object so calls can be chained.
+    public static class SearchOptions {
+        private int numRetries = 10;
+        private boolean printLog = false;
+        private Executor executor = ForkJoinPool.commonPool();
+        private long seed = new SplittableRandom().nextLong();
+        private SolverMode solverMode = SolverMode.GAUSSIAN;
+        private boolean successiveHalving = false;
+        private boolean adaptiveStopping = false;
+
+        // The number of retries per candidate tap position. Defaults to 10.
+        public SearchOptions setNumRetries(int numRetries) {
+            this.numRetries = numRetries;
+            return this;
+        }
+
+        // If set to true, the program outputs a password search log to standard output. Defaults to false.
+        public SearchOptions setPrintLog(boolean printLog) {
+            this.printLog = printLog;
+            return this;
+        }
+
+        // The executor that runs the trials and the decryption of the image with the key that was found.
+        // Defaults to the common ForkJoin pool.
+        public SearchOptions setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        // The seed of the random trial starts. Defaults to a random seed, which is printed with the log.
+        public SearchOptions setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        // If set to true, tap positions start with a couple of trials each, and only the better half by
+        // candidate cost goes on to more trials, round after round, up to numRetries. Otherwise every
+        // tap position gets numRetries trials. Does not apply to SolverMode.STRUCTURED. Defaults to false.
+        public SearchOptions setSuccessiveHalving(boolean successiveHalving) {
+            this.successiveHalving = successiveHalving;
+            return this;
+        }
+
+        // If set to true, the search stops after a round of trials once the best key has been found by two
+        // independent trials and its cost stands far enough below the cost that wrong keys produce, and if
+        // no key does after numRetries trials per tap position, the most promising tap positions get more
+        // trials, up to 8 times numRetries. Defaults to false.
+        public SearchOptions setAdaptiveStopping(boolean adaptiveStopping) {
+            this.adaptiveStopping = adaptiveStopping;
+            return this;
+        }
+
+        // How trials find candidate keys. Defaults to SolverMode.GAUSSIAN.
+        public SearchOptions setSolverMode(SolverMode solverMode) {
+            this.solverMode = solverMode;
+            return this;
+        }
+    }
+
+    // Searches every tap position for the password. Each trial is an independent task: it only reads
+    // the shared image data, keeps its scratch space thread-confined, and publishes candidates through
+    // a lock-free best-candidate holder.
+    private static class PasswordSearch {
+        // Berlekamp-Massey trials read a few bits beyond the 2N that determine the recurrence, so that a
+        // run which only happens to look like an LFSR sequence is unlikely. Structured trials check each
+        // run against the recurrence under all 8 channel patterns, so they read more bits beyond the N
+        // that determine the password for the same odds.
+        private static final int RUN_MARGIN = 6, STRUCTURED_RUN_MARGIN = 20;
+        // Trial random streams of the Berlekamp-Massey fast path, which has no tap position of its own.
+        private static final int RUN_STREAM = -1;
+        // Random streams of the keys that estimate the noise cost.
+        private static final int NOISE_STREAM = -2;
+        // RANSAC trials collect this many times N pixels and solve this many subsets of them.
+        private static final int RANSAC_OVERSAMPLING = 2, RANSAC_ITERATIONS = 16;
+        // A tap position is decoded if its feedback checks fail this many standard deviations less often
+        // than chance, with this many rounds of belief propagation.
+        private static final double CORRELATION_DEVIATIONS = 6;
+        private static final int CORRELATION_ROUNDS = 10;
+        // The decoder keeps two floats per bit, so it reads at most this many bits, 128 MB of floats, and at
+        // most this many tap positions are decoded at once, whatever the executor's parallelism.
+        private static final int CORRELATION_MAX_BITS = 1 << 24, CORRELATION_MAX_DECODES = 2;
+        // Tap positions whose distinguisher score reaches this many standard deviations are tried first.
+        private static final double DISTINGUISHER_DEVIATIONS = 6;
+        // With successive halving, every tap position starts with this many trials.
+        private static final int HALVING_INITIAL_TRIALS = 2;
+        // Wrong keys decrypt to noise, so their costs are those of random primary bit planes. The noise cost
+        // is estimated from this many random planes, enough to pin its standard deviation down to about
+        // 13%, and with adaptive stopping the search stops once the best key has been confirmed and its
+        // cost is this many standard deviations below it. Otherwise trials keep doubling up to
+        // MAX_RETRY_GROWTH times numRetries.
+        private static final int NOISE_SAMPLES = 32, MAX_RETRY_GROWTH = 8;
+        private static final double STOP_DEVIATIONS = 10;
+        // The stages of the search, in the order it runs them, and the bits of a search order below the
+        // trial, which hold the hypothesis or channel pattern.
+        private static final int STAGE_RUNS = 0, STAGE_CORRELATION = 1, STAGE_TAPS = 2, VARIANT_BITS = 8;
+
+        private int passwordLength, numRows, numCols, numRetries;
+        private long seed;
+        private boolean printLog, successiveHalving, adaptiveStopping;
+        private Executor executor;
+        private SolverMode solverMode;
+        private BitBuffer primaryBits;
+        private TapDistinguisher distinguisher;
+        private BestCandidate best;
+        // The exact cost of the best candidate of each tap position, which successive halving ranks them by.
+        private AtomicIntegerArray tapCosts;
+        // The noise cost and its standard deviation, which stays 0 until they are estimated.
+        private double noiseCost, noiseDeviation;
+        // The number of distinct candidates scored, and how each of them scored.
+        private AtomicLong numScored;
+        private ConcurrentHashMap<PackedKey, ScoredKey> scoreCache;
+        // The run solvers of the tap positions Berlekamp-Massey trials have revealed.
+        private ConcurrentHashMap<Integer, PrimaryRunSolver> runSolvers;
+        // Scoring scratch space is allocated once per thread and reused for every candidate.
+        private ThreadLocal<ComponentCounter> componentCounters;
+
+        // The primary bit plane and the distinguisher only depend on the image, so searches for several
+        // password lengths share them. The search reads nothing of the image but its primary bits.
+        public PasswordSearch(int numRows, int numCols, BitBuffer primaryBits, TapDistinguisher distinguisher,
+                              int passwordLength, SearchOptions options) {
+            this.numRows = numRows;
+            this.numCols = numCols;
+            this.primaryBits = primaryBits;
+            this.distinguisher = distinguisher;
+            this.passwordLength = passwordLength;
+            numRetries = options.numRetries;
+            printLog = options.printLog;
+            executor = options.executor;
+            seed = options.seed;
+            solverMode = options.solverMode;
+            successiveHalving = options.successiveHalving;
+            adaptiveStopping = options.adaptiveStopping;
+            // Our best cost will definitely be lower than this.
+            best = new BestCandidate((int) Math.min(Integer.MAX_VALUE, 3L * numRows * numCols));
+            componentCounters = ThreadLocal.withInitial(() -> new ComponentCounter(numRows, numCols));
+            tapCosts = new AtomicIntegerArray(passwordLength);
+            for (int tapPos = 0; tapPos < passwordLength; ++tapPos) {
+                tapCosts.set(tapPos, Integer.MAX_VALUE);
+            }
+            numScored = new AtomicLong();
+            scoreCache = new ConcurrentHashMap<>();
+            runSolvers = new ConcurrentHashMap<>();
+        }
+
+        // Scores random keys on the executor to find the mean and standard deviation of the cost of a wrong
+        // key. Each key comes from its own random stream, so the estimate does not depend on the executor.
+        // Only adaptive stopping, the confidence and the log need it, so it is made on first use.
+        private synchronized void estimateNoiseCost() {
+            if (noiseDeviation > 0) {
+                return;
+            }
+            int[] costs = new int[NOISE_SAMPLES];
+            List<CompletableFuture<Void>> samples = new ArrayList<>();
+            for (int sample = 0; sample < NOISE_SAMPLES; ++sample) {
+                int currSample = sample;
+                samples.add(CompletableFuture.runAsync(() -> {
+                    SplittableRandom random = trialRandom(NOISE_STREAM, currSample);
+                    boolean[] password = new boolean[passwordLength];
+                    for (int i = 0; i < passwordLength; ++i) {
+                        password[i] = random.nextBoolean();
+                    }
+                    LFSRKey randomKey = new LFSRKey(password, random.nextInt(Math.max(1, passwordLength - 1)));
+                    costs[currSample] = componentCounters.get().evaluateDecryptionCost(primaryBits,
+                            new KeystreamGenerator(randomKey).primaryKeystream(), Integer.MAX_VALUE);
+                }, executor));
+            }
+            CompletableFuture.allOf(samples.toArray(new CompletableFuture<?>[0])).join();
+            double sum = 0, sumOfSquares = 0;
+            for (int cost : costs) {
+                sum += cost;
+                sumOfSquares += (double) cost * cost;
+            }
+            noiseCost = sum / NOISE_SAMPLES;
+            double variance = (sumOfSquares - sum * noiseCost) / (NOISE_SAMPLES - 1);
+            noiseDeviation = Math.max(1, Math.sqrt(Math.max(0, variance)));
+        }
+
+        // Returns how many standard deviations the best cost so far lies below the noise cost.
+        public double getSeparation() {
+            estimateNoiseCost();
+            return (noiseCost - best.getCost()) / noiseDeviation;
+        }
+
+        // Returns true if the best key so far has been confirmed: found by two different trials, or decoded
+        // by the correlation attack and matched by the observation bits it was not solved from. A trial
+        // that solves for a wrong key, say because one channel of its pixels changes its primary bit, lands
+        // on a key that depends on exactly which pixels it read, so a wrong key seldom comes up twice. Its
+        // cost can still stand far below the noise, since it is partly right.
+        private boolean isBestConfirmed() {
+            LFSRKey bestKey = best.getKey();
+            return bestKey != null && scoreCache.get(new PackedKey(bestKey)).confirmed;
+        }
+
+        // Returns true if the best key so far has been confirmed and its cost lies STOP_DEVIATIONS below
+        // the noise cost.
+        public boolean isConvincing() {
+            return isBestConfirmed() && getSeparation() >= STOP_DEVIATIONS;
+        }
+
+        // Returns an estimate of the probability that the best key is not just the luckiest of the wrong keys
+        // scored: one minus the number of candidates scored times the chance that a single wrong key
+        // reaches this separation, using the Gaussian tail bound. A key that is not confirmed gets 0.
+        public double getConfidence() {
+            if (!isBestConfirmed()) {
+                return 0;
+            }
+            double separation = getSeparation();
+            if (separation <= 1) {
+                return 0;
+            }
+            double tail = Math.exp(-separation * separation / 2) / (separation * Math.sqrt(2 * Math.PI));
+            return Math.max(0, 1 - numScored.get() * tail);
+        }
+
+        // With adaptive stopping, the search checks this between rounds of trials, when the best key and
+        // the trials that found it no longer depend on timing.
+        private boolean isSeparated() {
+            return adaptiveStopping && isConvincing();
+        }
+
+        // Returns the decryption cost of the best key found so far.
+        public int getBestCost() {
+            return best.getCost();
+        }
+
+        // Runs every trial on the executor and returns the best key found, or null if there is none.
+        public LFSRKey run() {
+            if (printLog) {
+                System.out.println("Provided password length: " + passwordLength);
+                System.out.println("Search seed: " + seed);
+                estimateNoiseCost();
+                System.out.println(String.format("Noise cost: %.1f +- %.1f", noiseCost, noiseDeviation));
+            }
+            LFSRKey bestLFSR = search();
+            if (printLog && bestLFSR != null) {
+                System.out.println(String.format("Best cost %d is %.1f standard deviations below the noise cost, confidence %.6f.",
+                        best.getCost(), getSeparation(), getConfidence()));
+            }
+            return bestLFSR;
+        }
+
+        private LFSRKey search() {
+            if (solverMode == SolverMode.BERLEKAMP_MASSEY) {
+                if (3L * numCols < 2 * passwordLength + RUN_MARGIN) {
+                    if (printLog) {
+                        System.out.println("Image columns are too short for Berlekamp-Massey runs.");
+                    }
+                } else {
+                    // Runs do not depend on a tap position, so they get the trial budget of every tap. They
+                    // run in rounds of doubling size, until a second run finds the best key.
+                    int maxTrials = numRetries * passwordLength;
+                    for (int trialsDone = 0; trialsDone < maxTrials && !isBestConfirmed(); ) {
+                        int trialsTarget = Math.min(maxTrials, Math.max(numRetries, 2 * trialsDone));
+                        List<CompletableFuture<Void>> trials = new ArrayList<>();
+                        for (int trialNum = trialsDone + 1; trialNum <= trialsTarget; ++trialNum) {
+                            int currTrialNum = trialNum;
+                            trials.add(CompletableFuture.runAsync(() -> runSequenceTrial(currTrialNum), executor));
+                        }
+                        CompletableFuture.allOf(trials.toArray(new CompletableFuture<?>[0])).join();
+                        trialsDone = trialsTarget;
+                    }
+                    if (best.getKey() != null) {
+                        return best.getKey();
+                    }
+                }
+                if (printLog) {
+                    System.out.println("Berlekamp-Massey found no candidates. Enumerating tap positions.");
+                }
+            }
+            if (solverMode == SolverMode.CORRELATION) {
+                runCorrelationAttack();
+                if (best.getKey() != null) {
+                    return best.getKey();
+                }
+                if (printLog) {
+                    System.out.println("The correlation attack found no candidates. Enumerating tap positions.");
+                }
+            }
+            // Rank the tap positions from the ciphertext alone, and try the ones whose feedback checks
+            // stand out first. If any of them yields a candidate, the others are never tried.
+            double[] scores = new double[passwordLength];
+            Integer[] rankedTaps = new Integer[passwordLength];
+            for (int tapPos = 0; tapPos < passwordLength; ++tapPos) {
+                scores[tapPos] = distinguisher.score(passwordLength, tapPos);
+                rankedTaps[tapPos] = tapPos;
+            }
+            Arrays.sort(rankedTaps, (a, b) -> Double.compare(scores[b], scores[a]));
+            List<Integer> likelyTaps = new ArrayList<>(), otherTaps = new ArrayList<>();
+            for (int tapPos : rankedTaps) {
+                (scores[tapPos] >= DISTINGUISHER_DEVIATIONS ? likelyTaps : otherTaps).add(tapPos);
+            }
+            if (printLog) {
+                for (int tapPos : likelyTaps) {
+                    System.out.println(String.format("Tap position %d stands out with score %.1f.", tapPos, scores[tapPos]));
+                }
+            }
+            if (!likelyTaps.isEmpty()) {
+                enumerateTaps(likelyTaps);
+                if (adaptiveStopping ? isSeparated() : best.getKey() != null) {
+                    return best.getKey();
+                }
+            }
+            enumerateTaps(otherTaps);
+            if (adaptiveStopping) {
+                // Hard images get more trials: the better half of the tap positions by candidate cost gets
+                // twice the trials, then the better half of those, until the best key is convincing.
+                List<Integer> promisingTaps = new ArrayList<>(Arrays.asList(rankedTaps));
+                for (int trialsDone = numRetries; !isSeparated() && trialsDone < MAX_RETRY_GROWTH * numRetries;
+                     trialsDone *= 2) {
+                    sortByTapCost(promisingTaps);
+                    promisingTaps.subList(Math.max(1, promisingTaps.size() / 2), promisingTaps.size()).clear();
+                    if (printLog) {
+                        System.out.println(String.format("No candidate stands out after %d trials. %d tap positions get %d more.",
+                                trialsDone, promisingTaps.size(), trialsDone));
+                    }
+                    if (solverMode == SolverMode.STRUCTURED) {
+                        runStructuredTaps(promisingTaps, trialsDone + 1, 2 * trialsDone);
+                    } else {
+                        runTapTrials(promisingTaps, trialsDone + 1, 2 * trialsDone, true);
+                    }
+                }
+            }
+            return best.getKey();
+        }
+
+        // Runs the trials of the given tap positions, submitted in the given order.
+        private void enumerateTaps(List<Integer> tapPositions) {
+            if (solverMode == SolverMode.STRUCTURED) {
+                // The per-tap inversion is the expensive part, so each tap position is one task that
+                // inverts and then runs all of its trials, and successive halving does not apply.
+                // Only the taps in flight hold a matrix.
+                runStructuredTaps(tapPositions, 1, numRetries);
+                return;
+            }
+            boolean halving = successiveHalving && tapPositions.size() >= 2;
+            if (!halving && !adaptiveStopping) {
+                runTapTrials(tapPositions, 1, numRetries, true);
+                return;
+            }
+            // Successive halving: every tap position gets a couple of trials, then only the better half,
+            // by the cost of their best candidate so far, goes on with twice as many trials in total,
+            // until the survivors have used up numRetries. Ties keep the given order. With adaptive
+            // stopping, trials go in these rounds of doubling size even when a single tap position is
+            // left, so that the search can stop between them.
+            List<Integer> aliveTaps = new ArrayList<>(tapPositions);
+            int trialsDone = 0;
+            while (trialsDone < numRetries && !isSeparated()) {
+                int trialsTarget = aliveTaps.size() == 1 && !adaptiveStopping
+                        ? numRetries : Math.min(numRetries, Math.max(HALVING_INITIAL_TRIALS, 2 * trialsDone));
+                runTapTrials(aliveTaps, trialsDone + 1, trialsTarget, trialsTarget == numRetries);
+                trialsDone = trialsTarget;
+                if (halving && trialsDone < numRetries && aliveTaps.size() > 1) {
+                    sortByTapCost(aliveTaps);
+                    List<Integer> droppedTaps = aliveTaps.subList((aliveTaps.size() + 1) / 2, aliveTaps.size());
+                    if (printLog) {
+                        for (int tapPos : droppedTaps) {
+                            printTapSummary(tapPos);
+                        }
+                        System.out.println(String.format("%d tap positions go on after %d trials each.",
+                                aliveTaps.size() - droppedTaps.size(), trialsDone));
+                    }
+                    droppedTaps.clear();
+                }
+            }
+        }
+
+        // Sorts tap positions by the cost of their best candidate, keeping the given order among ties. Whether
+        // a cost above the best cost so far was scored exactly or abandoned early depends on thread timing,
+        // so all such tap positions rank alike, after the others.
+        private void sortByTapCost(List<Integer> tapPositions) {
+            int bestCost = best.getCost();
+            int[] rankCosts = new int[passwordLength];
+            for (int tapPos : tapPositions) {
+                rankCosts[tapPos] = tapCosts.get(tapPos) <= bestCost ? tapCosts.get(tapPos) : Integer.MAX_VALUE;
+            }
+            tapPositions.sort((a, b) -> Integer.compare(rankCosts[a], rankCosts[b]));
+        }
+
+        // Runs structured trials firstTrial to lastTrial of every given tap position, one task per tap
+        // position, and waits for them.
+        private void runStructuredTaps(List<Integer> tapPositions, int firstTrial, int lastTrial) {
+            List<CompletableFuture<Void>> trials = new ArrayList<>();
+            for (int tapPos : tapPositions) {
+                trials.add(CompletableFuture.runAsync(() -> runStructuredTrials(tapPos, firstTrial, lastTrial), executor));
+            }
+            CompletableFuture.allOf(trials.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        // Runs trials firstTrial to lastTrial of every given tap position and waits for them. If summarize
+        // is set, a tap position's summary is printed once its last trial is done.
+        private void runTapTrials(List<Integer> tapPositions, int firstTrial, int lastTrial, boolean summarize) {
+            List<CompletableFuture<Void>> trials = new ArrayList<>();
+            for (int tapPos : tapPositions) {
+                // Figure out the impact positions.
+                // impactPositions.get(r, c, colorChannel) returns a packed bit vector whose ith bit is set
+                // if flipping the ith bit in the password impacts the primary bit of the given color channel
+                // of the pixel (r, c). It holds no mutable state, so the trials of a tap share it.
+                ImpactPositionCalculator impactPositions = new ImpactPositionCalculator(numCols, tapPos, passwordLength);
+                AtomicInteger trialsLeft = new AtomicInteger(lastTrial - firstTrial + 1);
+                for (int trialNum = firstTrial; trialNum <= lastTrial; ++trialNum) {
+                    int currTrialNum = trialNum;
+                    trials.add(CompletableFuture.runAsync(() -> {
+                        if (solverMode == SolverMode.RANSAC) {
+                            runRansacTrial(impactPositions, tapPos, currTrialNum);
+                        } else {
+                            runTrial(impactPositions, tapPos, currTrialNum);
+                        }
+                        if (trialsLeft.decrementAndGet() == 0 && summarize && printLog) {
+                            printTapSummary(tapPos);
+                        }
+                    }, executor));
+                }
+            }
+            CompletableFuture.allOf(trials.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        // The fast correlation attack. Pixels (r, c) and (r, c + 1) usually share their plaintext primary bits,
+        // so the XOR of their ciphertext primary bits is a noisy observation of w[m] = v[m] ^ v[m + 3], where
+        // v is the primary keystream and m the index of the first primary bit. Since w is a sum of shifts of
+        // v, it obeys the same recurrence. Every tap position whose feedback checks hold on the observation
+        // more often than chance is decoded, and its most reliable bits of w give the password.
+        private void runCorrelationAttack() {
+            int length = (int) Math.min(3L * numRows * numCols - 3, CORRELATION_MAX_BITS);
+            if (length < 2 * passwordLength) {
+                if (printLog) {
+                    System.out.println("The image is too small for the correlation attack.");
+                }
+                return;
+            }
+            BitBuffer differences = neighborDifferences(primaryBits, length);
+            Semaphore decodePermits = new Semaphore(CORRELATION_MAX_DECODES);
+            List<CompletableFuture<Void>> attacks = new ArrayList<>();
+            // The last tap position cancels the feedback out entirely, so it has no checks to decode with.
+            for (int tapPos = 0; tapPos < passwordLength - 1; ++tapPos) {
+                int currTapPos = tapPos;
+                attacks.add(CompletableFuture.runAsync(
+                        () -> runCorrelationTap(differences, length, currTapPos, decodePermits), executor));
+            }
+            CompletableFuture.allOf(attacks.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        // Only the decoding itself holds one of the decode permits, since it is what takes memory of the
+        // observation's size.
+        private void runCorrelationTap(BitBuffer differences, int length, int tapPos, Semaphore decodePermits) {
+            FastCorrelationDecoder decoder = new FastCorrelationDecoder(differences, length, passwordLength, tapPos);
+            if (!decoder.isCorrelated(CORRELATION_DEVIATIONS)) {
+                return;
+            }
+            StringBuilder log = printLog ? new StringBuilder() : null;
+            if (printLog) {
+                log.append(String.format("Tap position %d: estimated noise %.4f, decoding%n", tapPos, decoder.getNoiseEstimate()));
+            }
+            FeedbackPolynomial feedback = new FeedbackPolynomial(passwordLength, tapPos);
+            GaussianEliminator solver = new GaussianEliminator(passwordLength, 1);
+            long[] order;
+            decodePermits.acquireUninterruptibly();
+            try {
+                float[] likelihoods = decoder.decode(CORRELATION_ROUNDS);
+                // If the shift by 3 loses information modulo the feedback polynomial, the rows never reach
+                // full rank, so only a few more than N of the most reliable bits are tried.
+                order = mostReliableBits(likelihoods, length, 2 * passwordLength + 64);
+                for (int k = order.length - 1; k >= 0 && !solver.isFinished(); --k) {
+                    int m = (int) order[k];
+                    long[] impactVector = feedback.powerOfX(passwordLength + 8L * m);
+                    long[] shiftedImpactVector = feedback.powerOfX(passwordLength + 8L * (m + 3));
+                    for (int j = 0; j < impactVector.length; ++j) {
+                        impactVector[j] ^= shiftedImpactVector[j];
+                    }
+                    solver.addRow(impactVector, likelihoods[m] < 0 ? 1 : 0);
+                }
+            } finally {
+                decodePermits.release();
+            }
+            if (solver.getSolvable(0) != 1) {
+                if (printLog) {
+                    log.append(String.format("No decoded-primary-bit solution has been found.%n"));
+                    System.out.print(log);
+                }
+                return;
+            }
+            LFSRKey solution = new LFSRKey(solver.getSolution(0), tapPos);
+            scoreCandidate(solution, searchOrder(STAGE_CORRELATION, tapPos, 0, 0), "Decoded", log);
+            // No second trial decodes the same tap position, so the bits the key was not solved from
+            // confirm it instead.
+            long[] heldOut = countHeldOutAgreement(solution, differences, length, order);
+            if (heldOut[0] - 2.0 * heldOut[1] > CORRELATION_DEVIATIONS * Math.sqrt(heldOut[0])) {
+                scoreCache.get(new PackedKey(solution)).confirmed = true;
+            }
+            if (printLog) {
+                log.append(String.format("%d of %d held-out bits disagree with the key.%n", heldOut[1], heldOut[0]));
+                System.out.print(log);
+            }
+        }
+
+        // Compares the key's w[m] = v[m] ^ v[m + 3] with the observed differences on every bit but the
+        // solved ones, and returns the number of bits compared and the number that disagree. A wrong key's
+        // w is independent of the observation and disagrees on half of them, while the right key only
+        // disagrees where the plaintext does. The key's primary keystream is streamed in words, so this
+        // takes O(length / 64) word operations and no buffer of the image's size.
+        private static long[] countHeldOutAgreement(LFSRKey key, BitBuffer differences, int length, long[] solvedBits) {
+            int[] solved = new int[solvedBits.length];
+            for (int k = 0; k < solvedBits.length; ++k) {
+                solved[k] = (int) solvedBits[k];
+            }
+            Arrays.sort(solved);
+            KeystreamGenerator.PrimaryKeystream keystream = new KeystreamGenerator(key).primaryKeystream();
+            long numDisagreements = 0;
+            long word = keystream.next(64);
+            for (int i = 0, k = 0; i < length; i += 64) {
+                int len = Math.min(64, length - i);
+                long nextWord = keystream.next(64);
+                long mask = len == 64 ? -1L : (1L << len) - 1;
+                for (; k < solved.length && solved[k] < i + len; ++k) {
+                    mask &= ~(1L << (solved[k] - i));
+                }
+                long keyDifferences = word ^ (word >>> 3 | nextWord << 61);
+                numDisagreements += Long.bitCount((keyDifferences ^ differences.read(i, len)) & mask);
+                word = nextWord;
+            }
+            return new long[] {length - solved.length, numDisagreements};
+        }
+
+        // Returns the count bits with the largest |likelihood|, in increasing order of it, each packed as
+        // |likelihood| above its index. The bit patterns of non-negative floats sort like the floats
+        // themselves. A min-heap of the count best bits so far keeps this O(length log count).
+        private static long[] mostReliableBits(float[] likelihoods, int length, int count) {
+            long[] heap = new long[Math.min(count, length)];
+            for (int i = 0; i < length; ++i) {
+                long packed = (long) Float.floatToIntBits(Math.abs(likelihoods[i])) << 32 | i;
+                int pos;
+                if (i < heap.length) {
+                    // Sift the new bit up from the end of the heap.
+                    for (pos = i; pos > 0 && heap[(pos - 1) / 2] > packed; pos = (pos - 1) / 2) {
+                        heap[pos] = heap[(pos - 1) / 2];
+                    }
+                } else if (packed > heap[0]) {
+                    // Replace the least reliable bit kept so far and sift the new one down.
+                    pos = 0;
+                    for (int child = 1; child < heap.length; child = 2 * pos + 1) {
+                        if (child + 1 < heap.length && heap[child + 1] < heap[child]) {
+                            ++child;
+                        }
+                        if (heap[child] >= packed) {
+                            break;
+                        }
+                        heap[pos] = heap[child];
+                        pos = child;
+                    }
+                } else {
+                    continue;
+                }
+                heap[pos] = packed;
+            }
+            Arrays.sort(heap);
+            return heap;
+        }
+
+        // A Berlekamp-Massey trial. Pixels (r, c), (r, c + 1), ... are adjacent in keystream order, so their
+        // primary bits are consecutive bits of the primary keystream, which obeys the trinomial recurrence.
+        // If all three channels keep their primary bit along the run, the run's primary bits are that
+        // keystream XORed with a period-3 pattern. For each of the 8 patterns, Berlekamp-Massey finds the
+        // shortest recurrence of the unmasked bits, which is the feedback trinomial or a factor of it and so
+        // reveals the tap position. The run's first N bits then determine the password through the run
+        // solver of that tap position, which is inverted the first time a run reveals the tap position.
+        private void runSequenceTrial(int trialNum) {
+            StringBuilder log = printLog ? new StringBuilder() : null;
+            int sequenceLength = 2 * passwordLength + RUN_MARGIN, runLength = (sequenceLength + 2) / 3;
+            SplittableRandom random = trialRandom(RUN_STREAM, trialNum);
+            int row = random.nextInt(numRows), startCol = random.nextInt(numCols - runLength + 1);
+            long firstIndex = 3L * (row * numCols + startCol);
+            if (printLog) {
+                log.append(String.format("Berlekamp-Massey trial %d: run of %d pixels starting at (%d, %d)%n",
+                        trialNum, runLength, row, startCol));
+            }
+            long[] runBits = readRunBits(firstIndex, sequenceLength);
+            for (int pattern = 0; pattern < 8; ++pattern) {
+                long[] sequence = unmaskChannels(runBits, sequenceLength, firstIndex, pattern);
+                BerlekampMassey recurrence = new BerlekampMassey(sequence, sequenceLength);
+                for (int tapPos : recurrence.getCompatibleTapPositions(passwordLength)) {
+                    if (printLog) {
+                        log.append(String.format("Channel pattern %d%d%d fits tap position %d.%n",
+                                pattern & 1, pattern >>> 1 & 1, pattern >>> 2 & 1, tapPos));
+                    }
+                    long searchOrder = searchOrder(STAGE_RUNS, tapPos, trialNum, pattern);
+                    PrimaryRunSolver runSolver = runSolvers.computeIfAbsent(tapPos,
+                            currTapPos -> new PrimaryRunSolver(passwordLength, currTapPos));
+                    if (runSolver.isSolvable()) {
+                        scoreCandidate(new LFSRKey(runSolver.solve(sequence, firstIndex), tapPos), searchOrder, "Run", log);
+                        continue;
+                    }
+                    // Runs do not determine the password of this tap position on their own, so the whole run
+                    // goes into an elimination.
+                    ImpactPositionCalculator impactPositions = new ImpactPositionCalculator(numCols, tapPos, passwordLength);
+                    GaussianEliminator solver = new GaussianEliminator(passwordLength, 1);
+                    for (int i = 0; i < sequenceLength && !solver.isFinished(); ++i) {
+                        long[] impactVector = impactPositions.get(row, startCol + i / 3, i % 3);
+                        solver.addRow(impactVector, sequence[i >>> 6] >>> i & 1);
+                    }
+                    scoreSolution(solver, 0, tapPos, searchOrder, "Run", log);
+                }
+            }
+            if (printLog) {
+                System.out.print(log);
+            }
+        }
+
+        private void runTrial(ImpactPositionCalculator impactPositions, int tapPos, int trialNum) {
+            // Trials run concurrently, so each one buffers its log and prints it in one piece.
+            StringBuilder log = printLog ? new StringBuilder() : null;
+            if (printLog) {
+                log.append(String.format("Tap position %d, trial %d of %d%n", tapPos, trialNum, numRetries));
+            }
+            SplittableRandom random = trialRandom(tapPos, trialNum);
+            int startRow = random.nextInt(numRows), startCol = random.nextInt(numCols);
+            int colorChannel = random.nextInt(3);
+            if (printLog) {
+                String colorChannelAsStr;
+                if (colorChannel == 0) {
+                    colorChannelAsStr = "R";
+                } else if (colorChannel == 1) {
+                    colorChannelAsStr = "G";
+                } else {
+                    colorChannelAsStr = "B";
+                }
+                log.append(String.format("Iteration starting at (%d, %d), color channel %s%n", startRow, startCol, colorChannelAsStr));
+            }
+            SquareIterator squareGenerator = new SquareIterator(numRows, numCols, startRow, startCol);
+            // Both hypotheses share the same coefficient matrix, so a single elimination
+            // carries them as two right-hand-side columns.
+            GaussianEliminator solver = new GaussianEliminator(passwordLength, 2);
+            int currSquare = squareGenerator.getNextSquare();
+            while (currSquare != -1 && !solver.isFinished()) {
+                int r = currSquare / numCols, c = currSquare % numCols;
+                // The ith value of the impact vector is true if that bit has impact.
+                // The dot product of this vector with the password gives a delta vector.
+                long[] impactVector = impactPositions.get(r, c, colorChannel);
+                // Find the current primary bit of this square for this color channel.
+                boolean currPrimary = primaryBits.read(3L * currSquare + colorChannel, 1) != 0;
+                // The zero hypothesis expects the primary bit itself, the one hypothesis its complement.
+                solver.addRow(impactVector, currPrimary ? 1L << ZERO_HYPOTHESIS : 1L << ONE_HYPOTHESIS);
+                // Get new square.
+                currSquare = squareGenerator.getNextSquare();
+            }
+            // Candidates are ranked by cost, then by the order a serial search would have found them in.
+            long searchOrder = searchOrder(STAGE_TAPS, tapPos, trialNum, 0);
+            scoreSolution(solver, ZERO_HYPOTHESIS, tapPos, searchOrder + ZERO_HYPOTHESIS, "Zero", log);
+            scoreSolution(solver, ONE_HYPOTHESIS, tapPos, searchOrder + ONE_HYPOTHESIS, "One", log);
+            if (printLog) {
+                System.out.print(log);
+            }
+        }
+
+        // A RANSAC trial. It collects 2N pixels along the spiral and solves several subsets of them: the
+        // spiral order itself, then alternately the pixels nearest a random one of them and a random
+        // order. For each hypothesis, the key that agrees with the most collected pixels is scored. A key
+        // from a subset without outliers agrees with every pixel that fits the hypothesis, while a wrong
+        // key only agrees with about half of them.
+        private void runRansacTrial(ImpactPositionCalculator impactPositions, int tapPos, int trialNum) {
+            StringBuilder log = printLog ? new StringBuilder() : null;
+            SplittableRandom random = trialRandom(tapPos, trialNum);
+            int startRow = random.nextInt(numRows), startCol = random.nextInt(numCols);
+            int colorChannel = random.nextInt(3);
+            if (printLog) {
+                log.append(String.format("Tap position %d, RANSAC trial %d of %d%n", tapPos, trialNum, numRetries));
+                log.append(String.format("Iteration starting at (%d, %d), color channel %s%n",
+                        startRow, startCol, "RGB".charAt(colorChannel)));
+            }
+            SquareIterator squareGenerator = new SquareIterator(numRows, numCols, startRow, startCol);
+            int maxSamples = RANSAC_OVERSAMPLING * passwordLength;
+            long[][] impactVectors = new long[maxSamples][];
+            int[] sampleRows = new int[maxSamples], sampleCols = new int[maxSamples];
+            long[] primaries = new long[(maxSamples + 63) >>> 6];
+            int numSamples = 0;
+            int currSquare = squareGenerator.getNextSquare();
+            while (currSquare != -1 && numSamples < maxSamples) {
+                int r = currSquare / numCols, c = currSquare % numCols;
+                if (primaryBits.read(3L * currSquare + colorChannel, 1) != 0) {
+                    primaries[numSamples >>> 6] |= 1L << numSamples;
+                }
+                impactVectors[numSamples] = impactPositions.get(r, c, colorChannel);
+                sampleRows[numSamples] = r;
+                sampleCols[numSamples] = c;
+                ++numSamples;
+                currSquare = squareGenerator.getNextSquare();
+            }
+            int[] order = new int[numSamples];
+            for (int i = 0; i < numSamples; ++i) {
+                order[i] = i;
+            }
+            // Sorting by distance packs each distance above the sample's place in the current order, so
+            // ties keep that order.
+            long[] byDistance = new long[numSamples];
+            int[] sortedOrder = new int[numSamples];
+            long[][] bestSolutions = new long[2][];
+            int[] bestAgreements = {-1, -1};
+            for (int iteration = 0; iteration < RANSAC_ITERATIONS; ++iteration) {
+                if (iteration % 2 == 1) {
+                    int pivot = random.nextInt(numSamples);
+                    for (int i = 0; i < numSamples; ++i) {
+                        int distance = Math.max(Math.abs(sampleRows[order[i]] - sampleRows[pivot]),
+                                Math.abs(sampleCols[order[i]] - sampleCols[pivot]));
+                        byDistance[i] = (long) distance << 32 | i;
+                    }
+                    Arrays.sort(byDistance);
+                    for (int i = 0; i < numSamples; ++i) {
+                        sortedOrder[i] = order[(int) byDistance[i]];
+                    }
+                    int[] temp = order;
+                    order = sortedOrder;
+                    sortedOrder = temp;
+                } else if (iteration > 0) {
+                    for (int i = numSamples - 1; i > 0; --i) {
+                        int j = random.nextInt(i + 1);
+                        int temp = order[i];
+                        order[i] = order[j];
+                        order[j] = temp;
+                    }
+                }
+                GaussianEliminator solver = new GaussianEliminator(passwordLength, 2);
+                for (int i = 0; i < numSamples && !solver.isFinished(); ++i) {
+                    boolean currPrimary = (primaries[order[i] >>> 6] >>> order[i] & 1) != 0;
+                    solver.addRow(impactVectors[order[i]], currPrimary ? 1L << ZERO_HYPOTHESIS : 1L << ONE_HYPOTHESIS);
+                }
+                for (int hypothesis = ZERO_HYPOTHESIS; hypothesis <= ONE_HYPOTHESIS; ++hypothesis) {
+                    if (solver.getSolvable(hypothesis) != 1) {
+                        continue;
+                    }
+                    long[] solution = solver.getPackedSolution(hypothesis);
+                    int agreement = 0;
+                    for (int i = 0; i < numSamples; ++i) {
+                        int parity = hypothesis ^ (int) (primaries[i >>> 6] >>> i & 1);
+                        long[] impactVector = impactVectors[i];
+                        for (int j = 0; j < solution.length; ++j) {
+                            parity ^= Long.bitCount(impactVector[j] & solution[j]);
+                        }
+                        if ((parity & 1) == 0) {
+                            ++agreement;
+                        }
+                    }
+                    if (agreement > bestAgreements[hypothesis]) {
+                        bestAgreements[hypothesis] = agreement;
+                        bestSolutions[hypothesis] = solution;
+                    }
+                }
+                if (bestAgreements[ZERO_HYPOTHESIS] == numSamples || bestAgreements[ONE_HYPOTHESIS] == numSamples) {
+                    break;
+                }
+            }
+            long searchOrder = searchOrder(STAGE_TAPS, tapPos, trialNum, 0);
+            for (int hypothesis = ZERO_HYPOTHESIS; hypothesis <= ONE_HYPOTHESIS; ++hypothesis) {
+                String name = hypothesis == ZERO_HYPOTHESIS ? "Zero" : "One";
+                if (bestSolutions[hypothesis] == null) {
+                    if (printLog) {
+                        log.append(String.format("No %s-primary-bit solution has been found.%n", name.toLowerCase()));
+                    }
+                    continue;
+                }
+                if (printLog) {
+                    log.append(String.format("Best %s-primary-bit key agrees with %d of %d pixels.%n",
+                            name.toLowerCase(), bestAgreements[hypothesis], numSamples));
+                }
+                boolean[] password = new boolean[passwordLength];
+                for (int i = 0; i < passwordLength; ++i) {
+                    password[i] = (bestSolutions[hypothesis][i >>> 6] >>> i & 1) != 0;
+                }
+                scoreCandidate(new LFSRKey(password, tapPos), searchOrder + hypothesis, name, log);
+            }
+            if (printLog) {
+                System.out.print(log);
+            }
+        }
+
+        // Runs every trial of one tap position with the structured solver. Tap positions whose runs cannot
+        // determine the password, or images with too few pixels for a run, use Gaussian trials instead.
+        private void runStructuredTrials(int tapPos, int firstTrial, int lastTrial) {
+            PrimaryRunSolver runSolver = new PrimaryRunSolver(passwordLength, tapPos);
+            boolean structured = runSolver.isSolvable() && 3L * numRows * numCols >= passwordLength;
+            ImpactPositionCalculator impactPositions = structured
+                    ? null : new ImpactPositionCalculator(numCols, tapPos, passwordLength);
+            for (int trialNum = firstTrial; trialNum <= lastTrial; ++trialNum) {
+                if (structured) {
+                    runStructuredTrial(runSolver, tapPos, trialNum);
+                } else {
+                    runTrial(impactPositions, tapPos, trialNum);
+                }
+            }
+            if (printLog) {
+                printTapSummary(tapPos);
+            }
+        }
+
+        // A structured trial. Like a Berlekamp-Massey trial, it reads the primary bits of a run of pixels
+        // that are adjacent in keystream order, and tries each of the 8 channel patterns the plaintext
+        // could have along the run. If the run is longer than an image column, it continues at the top
+        // of the next one.
+        private void runStructuredTrial(PrimaryRunSolver runSolver, int tapPos, int trialNum) {
+            StringBuilder log = printLog ? new StringBuilder() : null;
+            // The bits past the first N check the run against the recurrence before it is solved.
+            int sequenceLength = (int) Math.min(passwordLength + STRUCTURED_RUN_MARGIN, 3L * numRows * numCols);
+            int runLength = (sequenceLength + 2) / 3;
+            SplittableRandom random = trialRandom(tapPos, trialNum);
+            long firstPixel;
+            if (runLength <= numCols) {
+                firstPixel = (long) random.nextInt(numRows) * numCols + random.nextInt(numCols - runLength + 1);
+            } else {
+                firstPixel = random.nextLong((long) numRows * numCols - runLength + 1);
+            }
+            long firstIndex = 3 * firstPixel;
+            // A run that fills the image to the last pixel may be a bit or two short.
+            firstIndex = Math.min(firstIndex, 3L * numRows * numCols - sequenceLength);
+            if (printLog) {
+                log.append(String.format("Tap position %d, structured trial %d of %d: run of %d pixels starting at (%d, %d)%n",
+                        tapPos, trialNum, numRetries, runLength, firstPixel / numCols, firstPixel % numCols));
+            }
+            long[] runBits = readRunBits(firstIndex, sequenceLength);
+            for (int pattern = 0; pattern < 8; ++pattern) {
+                long[] keystreamBits = unmaskChannels(runBits, sequenceLength, firstIndex, pattern);
+                if (!runSolver.fitsRecurrence(keystreamBits, sequenceLength)) {
+                    continue;
+                }
+                LFSRKey solution = new LFSRKey(runSolver.solve(keystreamBits, firstIndex), tapPos);
+                if (printLog) {
+                    log.append(String.format("Channel pattern %d%d%d:%n", pattern & 1, pattern >>> 1 & 1, pattern >>> 2 & 1));
+                }
+                scoreCandidate(solution, searchOrder(STAGE_TAPS, tapPos, trialNum, pattern), "Run", log);
+            }
+            if (printLog) {
+                System.out.print(log);
+            }
+        }
+
+        // Reads length primary bits, starting at bit firstIndex, into a packed array.
+        private long[] readRunBits(long firstIndex, int length) {
+            long[] runBits = new long[(length + 63) >>> 6];
+            for (int i = 0; i < length; i += 64) {
+                runBits[i >>> 6] = primaryBits.read(firstIndex + i, Math.min(64, length - i));
+            }
+            return runBits;
+        }
+
+        // Returns a copy of the packed run bits with a channel pattern XORed out, which leaves the keystream
+        // bits if the plaintext follows the pattern along the run. Bit c of the pattern is the plaintext
+        // primary bit assumed for color channel c, and run bit i belongs to channel (firstIndex + i) mod 3.
+        private static long[] unmaskChannels(long[] runBits, int length, long firstIndex, int pattern) {
+            long[] keystreamBits = runBits.clone();
+            for (int colorChannel = 0; colorChannel < 3; ++colorChannel) {
+                if ((pattern >>> colorChannel & 1) != 0) {
+                    for (int i = (int) Math.floorMod(colorChannel - firstIndex, 3L); i < length; i += 3) {
+                        keystreamBits[i >>> 6] ^= 1L << i;
+                    }
+                }
+            }
+            return keystreamBits;
+        }
+
+        // Scores the solution of one hypothesis, if there is one, and offers it as the best candidate.
+        private void scoreSolution(GaussianEliminator solver, int hypothesis, int tapPos, long searchOrder, String name,
+                                   StringBuilder log) {
+            if (solver.getSolvable(hypothesis) != 1) {
+                if (printLog) {
+                    log.append(String.format("No %s-primary-bit solution has been found.%n", name.toLowerCase()));
+                }
+                return;
+            }
+            scoreCandidate(new LFSRKey(solver.getSolution(hypothesis), tapPos), searchOrder, name, log);
+        }
+
+        // Scores a candidate key and offers it as the best candidate.
+        // A key that was scored before is looked up instead of scored again, and marked as confirmed if
+        // a different trial found it first. A cost that was abandoned early is still above every later
+        // bound, since the best cost only goes down.
+        private void scoreCandidate(LFSRKey solution, long searchOrder, String name, StringBuilder log) {
+            PackedKey packedKey = new PackedKey(solution);
+            long trial = searchOrder >>> VARIANT_BITS;
+            ScoredKey scored = scoreCache.get(packedKey);
+            boolean cached = scored != null;
+            if (!cached) {
+                int bound = best.getCost();
+                int cost = componentCounters.get().evaluateDecryptionCost(primaryBits,
+                        new KeystreamGenerator(solution).primaryKeystream(), bound);
+                ScoredKey computed = new ScoredKey(cost, bound, trial);
+                scored = scoreCache.putIfAbsent(packedKey, computed);
+                cached = scored != null;
+                if (!cached) {
+                    scored = computed;
+                    numScored.incrementAndGet();
+                }
+            }
+            if (cached && scored.firstTrial != trial) {
+                scored.confirmed = true;
+            }
+            int cost = scored.cost, bound = scored.bound;
+            // A repeat may come earlier in search order, so it is offered again.
+            best.offer(solution, cost, searchOrder);
+            // Only exact costs rank tap positions; an abandoned cost is only known to be above its bound.
+            if (cost <= bound) {
+                tapCosts.accumulateAndGet(solution.tapPos, cost, Math::min);
+            }
+            if (printLog) {
+                log.append(String.format("%s-primary-bit solution has been found.%n", name));
+                log.append(solution).append(System.lineSeparator());
+                log.append(cost <= bound ? "Cost: " + cost : "Cost: over " + bound + ", abandoned early");
+                log.append(cached ? " (seen before)" : "").append(System.lineSeparator());
+            }
+        }
+
+        // Packs where a candidate was found into its search order, with the stage, the tap position, the
+        // trial number and the variant within the trial each in a bit field of its own. Candidates of
+        // different trials never share an order, and ties go to the earliest stage, tap position and trial.
+        private static long searchOrder(int stage, int tapPos, int trialNum, int variant) {
+            return (long) stage << 60 | (long) tapPos << 36 | (long) trialNum << VARIANT_BITS | variant;
+        }
+
+        // Returns the random stream of one trial. It only depends on the seed, the stream (the tap position,
+        // RUN_STREAM or NOISE_STREAM) and the trial number, so trials draw the same values no matter which
+        // thread runs them or when.
+        private SplittableRandom trialRandom(int stream, int trialNum) {
+            long trialSeed = mix64(mix64(seed + stream * 0x9E3779B97F4A7C15L) + trialNum * 0x9E3779B97F4A7C15L);
+            return new SplittableRandom(trialSeed);
+        }
+
+        // The SplitMix64 finalizer.
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        private void printTapSummary(int tapPos) {
+            StringBuilder summary = new StringBuilder();
+            // We separate out tap positions with multiple newlines for readability.
+            summary.append(String.format("%n%n%nAll trials for tap position %d are done.%n", tapPos));
+            LFSRKey bestLFSR = best.getKey();
+            if (bestLFSR == null) {
+                summary.append(String.format("<No valid LFSR keys found yet>%n"));
+            } else {
+                summary.append(String.format("Current best cost: %d%n", best.getCost()));
+                summary.append(bestLFSR).append(System.lineSeparator());
+            }
+            summary.append(String.format("%n%n%n"));
+            System.out.print(summary);
+        }
+    }
+
+    // Lock-free holder for the best key found so far and its cost, shared by concurrent trials.
+    // Ties in cost go to the candidate with the lower search order, so the held key does not depend
+    // on the order in which concurrent trials finish.
+    private static class BestCandidate {
+        private AtomicReference<Candidate> best;
+
+        // No key is held until one with a cost below initialCost is offered.
+        public BestCandidate(int initialCost) {
+            best = new AtomicReference<>(new Candidate(null, initialCost, Long.MAX_VALUE));
+        }
+
+        public LFSRKey getKey() {
+            return best.get().key;
+        }
+
+        public int getCost() {
+            return best.get().cost;
+        }
+
+        // Replaces the held candidate if the offered one is cheaper, or equally cheap and earlier in
+        // search order. Returns true if it did.
+        public boolean offer(LFSRKey key, int cost, long searchOrder) {
+            Candidate offered = new Candidate(key, cost, searchOrder);
+            while (true) {
+                Candidate current = best.get();
+                if (cost > current.cost || (cost == current.cost && searchOrder >= current.searchOrder)) {
+                    return false;
+                }
+                if (best.compareAndSet(current, offered)) {
+                    return true;
+                }
+            }
+        }
+
+        private static class Candidate {
+            private final LFSRKey key;
+            private final int cost;
+            private final long searchOrder;
+
+            public Candidate(LFSRKey key, int cost, long searchOrder) {
+                this.key = key;
+                this.cost = cost;
+                this.searchOrder = searchOrder;
+            }
+        }
+    }
+
+    // Returns the number of primary bits in the image, three per pixel.
+    private static long primaryBitCount(PixelArray image) {
+        return 3L * image.getNumRows() * image.getNumCols();
+    }
+
+    // Returns the XOR of the first length primary bits with the primary bits of the next pixel, which is
+    // the pixel below in the image. Bit m is the difference of primary bits m and m + 3.
+    private static BitBuffer neighborDifferences(BitBuffer primaryBits, long length) {
+        BitBuffer differences = new BitBuffer(length);
+        for (long i = 0; i < length; i += 64) {
+            int len = (int) Math.min(64, length - i);
+            differences.xorWord(i >>> 6, primaryBits.read(i, len) ^ primaryBits.read(i + 3, len));
+        }
+        return differences;
+    }
+
+    // Returns how many of the feedback checks bits[i] ^ bits[i - N] ^ bits[i - N + d] = 0, for N <= i < length,
+    // fail for the given password length and tap position.
+    private static long countFailedChecks(BitBuffer bits, long length, int passwordLength, int tapPos) {
+        return countFailedChecks(bits, length, passwordLength, tapPos, 0);
+    }
+
+    // Counts the failed feedback checks of the sequence bits[i] ^ bits[i + lag], or of bits itself if lag is 0,
+    // without building the sequence.
+    private static long countFailedChecks(BitBuffer bits, long length, int passwordLength, int tapPos, int lag) {
+        int feedbackGap = tapPos + 1;
+        long numFailedChecks = 0;
+        for (long i = passwordLength; i < length; i += 64) {
+            int len = (int) Math.min(64, length - i);
+            long failed = bits.read(i, len) ^ bits.read(i - passwordLength, len) ^ bits.read(i - feedbackGap, len);
+            if (lag > 0) {
+                failed ^= bits.read(i + lag, len) ^ bits.read(i + lag - passwordLength, len)
+                        ^ bits.read(i + lag - feedbackGap, len);
+            }
+            numFailedChecks += Long.bitCount(failed);
+        }
+        return numFailedChecks;
+    }
+
+    // Implements the LFSR on a bit plane image representation, writing the decrypted pixels straight into
+    // the output picture's raster, so no second image and no Color objects are built.
+    // Each band of squares covers a contiguous keystream segment, so the bands are decrypted
+    // independently on the search's executor, each starting from a jump-ahead register state.
+    // The keystream is generated as bit planes too, so decryption XORs 64 color values per word
+    // operation. Bands write disjoint pixels of the raster.
+    private static Picture useLFSR(PixelArray image, LFSRKey key, Executor executor) {
+        int numRows = image.getNumRows(), numCols = image.getNumCols();
+        int numSquares = numRows * numCols;
+        Picture decrypted = new Picture(numRows, numCols);
+        int[] rgbArray = decrypted.getRGBArray();
+        KeystreamGenerator generator = new KeystreamGenerator(key);
+        int squaresPerBand = bandLength(key, numSquares);
+        int numBands = numBands(numSquares, squaresPerBand);
+        runBands(numBands, band -> {
+            int firstSquare = band * squaresPerBand;
+            int lastSquare = (int) Math.min(numSquares, (long) firstSquare + squaresPerBand);
+            long firstIndex = 3L * firstSquare;
+            BitBuffer[] keystreamPlanes = generator.generateBitPlanes(firstIndex, 3 * (lastSquare - firstSquare));
+            long[] decryptedWords = new long[8];
+            int square = firstSquare, colorChannel = 0;
+            for (long word = 0; word < keystreamPlanes[0].getNumWords(); ++word) {
+                // Keystream bit 8 * index + offset encrypts bit 7 - offset of color value index.
+                for (int bit = 0; bit < 8; ++bit) {
+                    decryptedWords[bit] = image.getBitPlane(bit).getWord((firstIndex >>> 6) + word)
+                            ^ keystreamPlanes[7 - bit].getWord(word);
+                }
+                for (int group = 0; group < 64 && square < lastSquare; group += 8) {
+                    // Byte b of the matrix holds bit b of eight color values, so its transpose holds the values.
+                    long matrix = 0;
+                    for (int bit = 0; bit < 8; ++bit) {
+                        matrix |= (decryptedWords[bit] >>> group & 0xFF) << (8 * bit);
+                    }
+                    long values = transposeBitMatrix(matrix);
+                    for (int i = 0; i < 8 && square < lastSquare; ++i) {
+                        int r = square / numCols, c = square % numCols;
+                        rgbArray[c * numRows + r] |= (int) (values >>> (8 * i) & 0xFF) << (16 - 8 * colorChannel);
+                        if (++colorChannel == 3) {
+                            colorChannel = 0;
+                            ++square;
+                        }
+                    }
+                }
+            }
+        }, executor);
+        decrypted.setRGBArray(rgbArray);
+        return decrypted;
+    }
+
+    // Decrypts a mapped image file into another one of the same layout. The keystream runs down pixel
+    // columns (r), but the file is stored in rows (c), so a band is a range of whole pixel columns: its
+    // keystream is generated first and then written back one file row at a time, in file order, which reads
+    // and writes one contiguous run of each file row per band rather than jumping a file row per pixel.
+    // Bands are at least bandLength squares long, and as wide as MAPPED_RUN_BYTES of a file row or
+    // MAPPED_BAND_BYTES of keystream allow. A pixel column longer than bandLength is cut into bands of
+    // bandLength squares instead, whose file rows are then short and adjacent in the file. The bands run on
+    // the executor, and each thread holds one band's keystream in the heap at a time.
+    private static void useLFSR(MappedImage encrypted, MappedImage decrypted, LFSRKey key, Executor executor) {
+        int numRows = encrypted.getNumRows(), numCols = encrypted.getNumCols();
+        KeystreamGenerator generator = new KeystreamGenerator(key);
+        int squaresPerBand = bandLength(key, numRows * numCols);
+        int rowsPerBand = 1, colsPerBand = squaresPerBand;
+        if (numCols <= squaresPerBand) {
+            int runRows = Math.min(MAPPED_RUN_BYTES / 3, Math.max(1, MAPPED_BAND_BYTES / 3 / numCols));
+            rowsPerBand = Math.min(numRows, Math.max(squaresPerBand / numCols, runRows));
+            colsPerBand = numCols;
+        }
+        // Bands split file rows only if they are one pixel column wide, so there are fewer bands than squares.
+        int colBands = numBands(numCols, colsPerBand), numBands = numBands(numRows, rowsPerBand) * colBands;
+        boolean bottomUp = encrypted.isBottomUp();
+        int finalRowsPerBand = rowsPerBand, finalColsPerBand = colsPerBand;
+        runBands(numBands, band -> {
+            int firstRow = band / colBands * finalRowsPerBand;
+            int lastRow = (int) Math.min(numRows, (long) firstRow + finalRowsPerBand);
+            int firstCol = band % colBands * finalColsPerBand;
+            int lastCol = (int) Math.min(numCols, (long) firstCol + finalColsPerBand), bandCols = lastCol - firstCol;
+            // The band covers whole pixel columns or part of a single one, so its squares are contiguous in
+            // keystream order.
+            BitBuffer encryptionBits = generator.generate(24 * ((long) firstRow * numCols + firstCol),
+                    24L * (lastRow - firstRow) * bandCols);
+            for (int i = firstCol; i < lastCol; ++i) {
+                int c = bottomUp ? firstCol + lastCol - 1 - i : i;
+                for (int r = firstRow; r < lastRow; ++r) {
+                    // The first keystream bit of a pixel is the most significant bit of its red value,
+                    // so reversing the 24 bits lines them up with an 0xRRGGBB value.
+                    long bitPos = 24 * ((long) (r - firstRow) * bandCols + c - firstCol);
+                    int toXor = Integer.reverse((int) encryptionBits.read(bitPos, 24)) >>> 8;
+                    decrypted.setRGB(r, c, encrypted.getRGB(r, c) ^ toXor);
+                }
+            }
+        }, executor);
+    }
+
+    // Returns how many squares a band of the image decryption covers. Computing a jump-ahead state costs
+    // about N^2 / 64 word operations, so bands are kept long enough for keystream generation to dominate.
+    // Bands are a multiple of 64 squares long, so each one starts on a word boundary of the bit planes.
+    // The arithmetic is done in long, since the image may have up to 2^31 - 1 squares.
+    private static int bandLength(LFSRKey key, int numSquares) {
+        long passwordLength = key.binaryPassword.length;
+        long minBandBits = Math.max(1L << 18, 8 * passwordLength * passwordLength);
+        return (int) Math.min((numSquares + 63L) & ~63L, ((minBandBits + 24 * 64 - 1) / (24 * 64)) * 64);
+    }
+
+    // Returns how many bands of the given length cover the image.
+    private static int numBands(int numSquares, int squaresPerBand) {
+        return (int) ((numSquares + (long) squaresPerBand - 1) / squaresPerBand);
+    }
+
+    // Submits every band of a decryption to the executor as an independent task, as the trials are, and
+    // waits for all of them.
+    private static void runBands(int numBands, IntConsumer decryptBand, Executor executor) {
+        CompletableFuture<?>[] bands = new CompletableFuture<?>[numBands];
+        for (int band = 0; band < numBands; ++band) {
+            int currBand = band;
+            bands[band] = CompletableFuture.runAsync(() -> decryptBand.accept(currBand), executor);
+        }
+        CompletableFuture.allOf(bands).join();
+    }
+
+    // Packs the primary bits of a mapped image file in keystream order, as in PixelArray. The file is read
+    // in its own row order, so the mapping is streamed through front to back. The plane, three bits per
+    // pixel, is kept in a mapped temporary file rather than the heap, and is read word by word like any
+    // other bit buffer, without going back to the image's own byte layout.
+    private static BitBuffer primaryBitPlane(MappedImage image) {
+        int numRows = image.getNumRows(), numCols = image.getNumCols();
+        BitBuffer primaryBits = BitBuffer.createMapped(3L * numRows * numCols);
+        for (int c : image.getFileColumnOrder()) {
+            for (int r = 0; r < numRows; ++r) {
+                int rgb = image.getRGB(r, c);
+                long primaries = (rgb >>> 23 & 1) | (rgb >>> 14 & 2) | (rgb >>> 5 & 4);
+                primaryBits.xor(3 * ((long) r * numCols + c), 3, primaries);
+            }
+        }
+        return primaryBits;
+    }
+
+    // Convert picture to a pixel array. Pixel (r, c) of the array is pixel (x, y) = (r, c) of the picture.
+    // This converts rows in the image to columns in the array, so row-major iteration is used.
+    // The colors are read in bulk from the picture's raster, so no Color object is made per pixel,
+    // and split into bit planes eight color values at a time.
+    private static PixelArray pictureToArray(Picture pic) {
+        int width = pic.width(), height = pic.height();
+        int[] rgbArray = pic.getRGBArray();
+        long numIndices = 3L * width * height;
+        BitBuffer[] bitPlanes = new BitBuffer[8];
+        for (int bit = 0; bit < 8; ++bit) {
+            bitPlanes[bit] = new BitBuffer(numIndices);
+        }
+        long values = 0;
+        long index = 0;
+        for (int x = 0; x < width; ++x) {
+            for (int y = 0; y < height; ++y) {
+                int rgb = rgbArray[y * width + x];
+                for (int colorChannel = 0; colorChannel < 3; ++colorChannel) {
+                    values |= (long) (rgb >>> (16 - 8 * colorChannel) & 0xFF) << (8 * (int) (index & 7));
+                    if ((++index & 7) == 0 || index == numIndices) {
+                        // Byte j of the values is color value j of the group, so byte b of the transpose
+                        // holds bit b of all of them.
+                        long matrix = transposeBitMatrix(values);
+                        long group = (index - 1) & ~7;
+                        for (int bit = 0; bit < 8; ++bit) {
+                            bitPlanes[bit].xorWord(group >>> 6, (matrix >>> (8 * bit) & 0xFF) << group);
+                        }
+                        values = 0;
+                    }
+                }
+            }
+        }
+        return new PixelArray(width, height, bitPlanes);
+    }
+
+    // Transposes an 8x8 bit matrix whose row i is byte i of the given long and whose column j is bit j of
+    // each byte, using three rounds of swapping blocks across the diagonal.
+    private static long transposeBitMatrix(long matrix) {
+        long t = (matrix ^ (matrix >>> 7)) & 0x00AA00AA00AA00AAL;
+        matrix ^= t ^ (t << 7);
+        t = (matrix ^ (matrix >>> 14)) & 0x0000CCCC0000CCCCL;
+        matrix ^= t ^ (t << 14);
+        t = (matrix ^ (matrix >>> 28)) & 0x00000000F0F0F0F0L;
+        matrix ^= t ^ (t << 28);
+        return matrix;
+    }
+
+    // An image as 24 bit planes with its dimensions: bit plane b packs bit b of every color value.
+    // Pixel (r, c) is the square r * numCols + c, the same numbering SquareIterator uses, and bit
+    // 3 * square + colorChannel of each plane belongs to the given color channel of that square. This is
+    // keystream order: bit b of that color value is encrypted by keystream bit 8 * (3 * square + colorChannel)
+    // + 7 - b. The three channels share a plane, so each plane is one 8-fold decimation of the keystream,
+    // which follows the LFSR recurrence itself and can be generated 64 bits at a time.
+    // Neighboring pixels of a plane are 3 bits apart, and vertical neighbors 3 * numCols bits apart, so a whole
+    // word of them is compared with one shifted-word XOR.
+    private static class PixelArray {
+        private int numRows, numCols;
+        private BitBuffer[] bitPlanes;
+
+        public PixelArray(int numRows, int numCols, BitBuffer[] bitPlanes) {
+            this.numRows = numRows;
+            this.numCols = numCols;
+            this.bitPlanes = bitPlanes;
+        }
+
+        public int getNumRows() {
+            return numRows;
+        }
+
+        public int getNumCols() {
+            return numCols;
+        }
+
+        // Returns the plane of bit b of every color value, which callers must not modify.
+        public BitBuffer getBitPlane(int bit) {
+            return bitPlanes[bit];
+        }
+    }
+
+    // A packed bit array with long indices, stored in segments of SEGMENT_WORDS words. Image-sized bit planes
+    // can hold more than 2^31 bits this way, and none of them needs a single giant allocation. A read or XOR
+    // of up to 64 bits touches at most two words, which may lie in neighboring segments; within a segment it is
+    // the readBits or xorBits of a packed LongBuffer. Segments wrap long[] arrays in the heap, or, for
+    // buffers made by createMapped, map a temporary file, so users of the buffer need not know which.
+    private static class BitBuffer {
+        private static final int SEGMENT_SHIFT = 20, SEGMENT_WORDS = 1 << SEGMENT_SHIFT, SEGMENT_BIT_SHIFT = SEGMENT_SHIFT + 6;
+        private static final long SEGMENT_BIT_MASK = (1L << SEGMENT_BIT_SHIFT) - 1;
+
+        private long length, numWords;
+        private LongBuffer[] segments;
+
+        public BitBuffer(long length) {
+            this(length, false);
+        }
+
+        // Creates a cleared buffer whose words live in a temporary file mapped into memory rather than in
+        // the heap, so the operating system pages it in and out as it is used. The file is deleted as soon
+        // as it is mapped, and its space is freed once the buffer is unreachable.
+        public static BitBuffer createMapped(long length) {
+            return new BitBuffer(length, true);
+        }
+
+        private BitBuffer(long length, boolean mapped) {
+            this.length = length;
+            numWords = (length + 63) >>> 6;
+            segments = new LongBuffer[(int) ((numWords + SEGMENT_WORDS - 1) >>> SEGMENT_SHIFT)];
+            if (!mapped) {
+                for (int i = 0; i < segments.length; ++i) {
+                    segments[i] = LongBuffer.wrap(new long[segmentWords(i)]);
+                }
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(Files.createTempFile("lfsr-breaker", ".bits"),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+                // Mapping past the end of the file extends it with zeros.
+                for (int i = 0; i < segments.length; ++i) {
+                    segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, 8L * ((long) i << SEGMENT_SHIFT),
+                            8L * segmentWords(i)).order(ByteOrder.nativeOrder()).asLongBuffer();
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not create a temporary file for " + length + " bits");
+            }
+        }
+
+        private int segmentWords(int segment) {
+            return (int) Math.min(SEGMENT_WORDS, numWords - ((long) segment << SEGMENT_SHIFT));
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getNumWords() {
+            return numWords;
+        }
+
+        // Returns word i, which holds bits 64i to 64i + 63.
+        public long getWord(long i) {
+            return segments[(int) (i >>> SEGMENT_SHIFT)].get((int) i & (SEGMENT_WORDS - 1));
+        }
+
+        public void xorWord(long i, long value) {
+            LongBuffer segment = segments[(int) (i >>> SEGMENT_SHIFT)];
+            int index = (int) i & (SEGMENT_WORDS - 1);
+            segment.put(index, segment.get(index) ^ value);
+        }
+
+        // Reads len (1 to 64) bits starting at bit pos, with bit pos in the lowest position.
+        public long read(long pos, int len) {
+            int segment = (int) (pos >>> SEGMENT_BIT_SHIFT), split = splitLength(pos, len);
+            long localPos = pos & SEGMENT_BIT_MASK;
+            if (split == len) {
+                return readBits(segments[segment], localPos, len);
+            }
+            return readBits(segments[segment], localPos, split) | readBits(segments[segment + 1], 0, len - split) << split;
+        }
+
+        // XORs the low len (1 to 64) bits of value in starting at bit pos. Bits of value above len must be clear.
+        public void xor(long pos, int len, long value) {
+            int segment = (int) (pos >>> SEGMENT_BIT_SHIFT), split = splitLength(pos, len);
+            long localPos = pos & SEGMENT_BIT_MASK;
+            if (split == len) {
+                xorBits(segments[segment], localPos, len, value);
+            } else {
+                xorBits(segments[segment], localPos, split, value & ((1L << split) - 1));
+                xorBits(segments[segment + 1], 0, len - split, value >>> split);
+            }
+        }
+
+        // Returns how many of the len bits starting at pos lie in the segment holding bit pos.
+        private static int splitLength(long pos, int len) {
+            long segmentEnd = (pos | SEGMENT_BIT_MASK) + 1;
+            return (int) Math.min(len, segmentEnd - pos);
+        }
+    }
+
+    // An uncompressed image file mapped into memory: a binary PPM (P6 with maximum value 255) or a 24-bit
+    // BMP without compression. Pixel (r, c) is pixel (x, y) = (r, c) of the picture, as in PixelArray, and
+    // pixels are read and written in place through the mapping, so the image never has to fit in the heap.
+    // A single mapping holds less than 2^31 bytes, so the file is mapped in segments of 2^SEGMENT_SHIFT bytes.
+    private static class MappedImage {
+        // The BMP file and info headers hold everything parsed in their first 34 bytes.
+        private static final int SEGMENT_SHIFT = 30, MAX_HEADER_LENGTH = 1 << 10, BMP_HEADER_LENGTH = 34;
+
+        private int width, height;
+        // Pixel data starts at dataOffset, and file row y (counted from the top of the image, or from the
+        // bottom if bottomUp is set) starts rowStride bytes after row y - 1.
+        private long fileLength, dataOffset, rowStride;
+        private boolean bottomUp, bgr;
+        private Path path;
+        private MappedByteBuffer[] segments;
+
+        private MappedImage() {
+        }
+
+        // Maps an image file for reading and parses its header.
+        public static MappedImage open(String filename) {
+            MappedImage image = new MappedImage();
+            image.path = Paths.get(filename);
+            try (FileChannel channel = FileChannel.open(image.path, StandardOpenOption.READ)) {
+                image.map(channel, channel.size(), FileChannel.MapMode.READ_ONLY);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not open file: " + filename);
+            }
+            if (image.fileLength < 2) {
+                throw new RuntimeException("Not a binary PPM or BMP file: " + filename);
+            }
+            if (image.getByte(0) == 'P' && image.getByte(1) == '6') {
+                image.parsePPMHeader();
+            } else if (image.getByte(0) == 'B' && image.getByte(1) == 'M') {
+                image.parseBMPHeader();
+            } else {
+                throw new RuntimeException("Not a binary PPM or BMP file: " + filename);
+            }
+            if (image.dataOffset + image.rowStride * image.height > image.fileLength) {
+                throw new RuntimeException("Truncated image file: " + filename);
+            }
+            return image;
+        }
+
+        // Creates a file of the same size, header and layout as this image, and maps it for writing. Every
+        // byte that is not pixel data is copied over: the header, the padding at the end of each BMP row, and
+        // whatever the file holds after the pixel rows, so only the pixels are left to be written.
+        // The file must not be this image's own file, which creating it would truncate.
+        public MappedImage createCopy(String filename) {
+            checkCopyFile(filename);
+            MappedImage copy = new MappedImage();
+            copy.path = Paths.get(filename);
+            copy.width = width;
+            copy.height = height;
+            copy.dataOffset = dataOffset;
+            copy.rowStride = rowStride;
+            copy.bottomUp = bottomUp;
+            copy.bgr = bgr;
+            try (FileChannel channel = FileChannel.open(copy.path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                copy.map(channel, fileLength, FileChannel.MapMode.READ_WRITE);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not create file: " + filename);
+            }
+            copyBytes(copy, 0, dataOffset);
+            if (rowStride > 3L * width) {
+                for (long row = 0; row < height; ++row) {
+                    long rowStart = dataOffset + row * rowStride;
+                    copyBytes(copy, rowStart + 3L * width, rowStart + rowStride);
+                }
+            }
+            copyBytes(copy, dataOffset + rowStride * height, fileLength);
+            return copy;
+        }
+
+        // Copies bytes from up to, but not including, to into the same positions of the copy.
+        private void copyBytes(MappedImage copy, long from, long to) {
+            for (long pos = from; pos < to; ++pos) {
+                copy.putByte(pos, getByte(pos));
+            }
+        }
+
+        // Throws if filename names this image's own file, so a copy cannot be created over it.
+        public void checkCopyFile(String filename) {
+            Path target = Paths.get(filename);
+            try {
+                if (Files.exists(target) && Files.isSameFile(path, target)) {
+                    throw new RuntimeException("Cannot write an image over itself: " + filename);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not create file: " + filename);
+            }
+        }
+
+        // Writes any changes made through the mapping out to the file.
+        public void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        public int getNumRows() {
+            return width;
+        }
+
+        public int getNumCols() {
+            return height;
+        }
+
+        // Returns whether the file stores its rows bottom up, so that column c + 1 comes before column c.
+        public boolean isBottomUp() {
+            return bottomUp;
+        }
+
+        // Returns the columns c in the order their file rows are stored, so that reading every row r of each
+        // column in turn runs through the file front to back.
+        public int[] getFileColumnOrder() {
+            int[] order = new int[height];
+            for (int i = 0; i < height; ++i) {
+                order[i] = bottomUp ? height - 1 - i : i;
+            }
+            return order;
+        }
+
+        // Returns the color of pixel (r, c) packed as 0xRRGGBB.
+        public int getRGB(int r, int c) {
+            long pos = pixelOffset(r, c);
+            int first = getByte(pos) & 0xFF, second = getByte(pos + 1) & 0xFF, third = getByte(pos + 2) & 0xFF;
+            return bgr ? (third << 16) | (second << 8) | first : (first << 16) | (second << 8) | third;
+        }
+
+        public void setRGB(int r, int c, int rgb) {
+            long pos = pixelOffset(r, c);
+            putByte(pos, (byte) (bgr ? rgb : rgb >>> 16));
+            putByte(pos + 1, (byte) (rgb >>> 8));
+            putByte(pos + 2, (byte) (bgr ? rgb >>> 16 : rgb));
+        }
+
+        private long pixelOffset(int r, int c) {
+            return dataOffset + (bottomUp ? height - 1 - c : c) * rowStride + 3L * r;
+        }
+
+        private void map(FileChannel channel, long length, FileChannel.MapMode mode) throws IOException {
+            fileLength = length;
+            segments = new MappedByteBuffer[(int) ((length + (1L << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; ++i) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(mode, start, Math.min(1L << SEGMENT_SHIFT, length - start));
+            }
+        }
+
+        private byte getByte(long pos) {
+            return segments[(int) (pos >>> SEGMENT_SHIFT)].get((int) (pos & ((1 << SEGMENT_SHIFT) - 1)));
+        }
+
+        private void putByte(long pos, byte value) {
+            segments[(int) (pos >>> SEGMENT_SHIFT)].put((int) (pos & ((1 << SEGMENT_SHIFT) - 1)), value);
+        }
+
+        // A PPM header is "P6", the width, the height and the maximum value in ASCII, separated by whitespace
+        // and comments, followed by a single whitespace character before the pixels.
+        private void parsePPMHeader() {
+            long[] pos = {2};
+            setSize(readHeaderNumber(pos), readHeaderNumber(pos));
+            if (readHeaderNumber(pos) != 255) {
+                throw new RuntimeException("Only PPM files with a maximum value of 255 are supported");
+            }
+            dataOffset = pos[0] + 1;
+            rowStride = 3L * width;
+        }
+
+        private long readHeaderNumber(long[] pos) {
+            while (pos[0] < Math.min(fileLength, MAX_HEADER_LENGTH)) {
+                byte b = getByte(pos[0]);
+                if (b == '#') {
+                    while (pos[0] < fileLength && getByte(pos[0]) != '\n') {
+                        ++pos[0];
+                    }
+                } else if (b >= '0' && b <= '9') {
+                    long number = 0;
+                    while (pos[0] < fileLength && getByte(pos[0]) >= '0' && getByte(pos[0]) <= '9') {
+                        // Saturate just above the int range, which setSize rejects.
+                        number = Math.min(10 * number + getByte(pos[0]) - '0', (long) Integer.MAX_VALUE + 1);
+                        ++pos[0];
+                    }
+                    return number;
+                } else {
+                    ++pos[0];
+                }
+            }
+            throw new RuntimeException("Invalid PPM header");
+        }
+
+        // A BMP file header holds the pixel data offset at byte 10, and the info header that follows it holds
+        // the width, the height (negative for top-down rows), the bits per pixel and the compression.
+        // Rows of 24-bit pixels are stored blue first and padded to a multiple of 4 bytes.
+        private void parseBMPHeader() {
+            if (fileLength < BMP_HEADER_LENGTH) {
+                throw new RuntimeException("Invalid BMP header");
+            }
+            dataOffset = readLittleEndian(10, 4) & 0xFFFFFFFFL;
+            int signedHeight = (int) readLittleEndian(22, 4);
+            if (readLittleEndian(28, 2) != 24 || readLittleEndian(30, 4) != 0) {
+                throw new RuntimeException("Only uncompressed 24-bit BMP files are supported");
+            }
+            bottomUp = signedHeight > 0;
+            setSize((int) readLittleEndian(18, 4), Math.abs((long) signedHeight));
+            rowStride = (3L * width + 3) & ~3L;
+            bgr = true;
+        }
+
+        // The search numbers pixels with ints, and the scorer keeps two rows of union-find slots for each of
+        // the 3 color channels of a column in one int-indexed array, so larger images are rejected up front
+        // rather than overflowing halfway through.
+        private void setSize(long width, long height) {
+            if (width <= 0 || height <= 0) {
+                throw new RuntimeException("Invalid image size: " + width + "x" + height);
+            }
+            if (width > Integer.MAX_VALUE || height > Integer.MAX_VALUE / 6 || width * height > Integer.MAX_VALUE) {
+                throw new RuntimeException("Image too large: " + width + "x" + height
+                        + " (images must have fewer than 2^31 pixels, and columns fewer than 2^31 / 6)");
+            }
+            this.width = (int) width;
+            this.height = (int) height;
+        }
+
+        private long readLittleEndian(long pos, int numBytes) {
+            long value = 0;
+            for (int i = numBytes - 1; i >= 0; --i) {
+                value = (value << 8) | (getByte(pos + i) & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    // Reads len (1 to 64) bits of a packed bit array starting at bit pos, with bit pos in the lowest position.
+    private static long readBits(long[] bits, long pos, int len) {
+        int word = (int) (pos >>> 6), offset = (int) (pos & 63);
+        long value = bits[word] >>> offset;
+        if (offset + len > 64) {
+            value |= bits[word + 1] << (64 - offset);
+        }
+        return len == 64 ? value : value & ((1L << len) - 1);
+    }
+
+    // Reads len (1 to 64) bits of a packed LongBuffer starting at bit pos, as readBits of a long[] does.
+    private static long readBits(LongBuffer bits, long pos, int len) {
+        int word = (int) (pos >>> 6), offset = (int) (pos & 63);
+        long value = bits.get(word) >>> offset;
+        if (offset + len > 64) {
+            value |= bits.get(word + 1) << (64 - offset);
+        }
+        return len == 64 ? value : value & ((1L << len) - 1);
+    }
+
+    // XORs the low len (1 to 64) bits of value into a packed bit array starting at bit pos.
+    // Bits of value above len must be clear.
+    private static void xorBits(long[] bits, long pos, int len, long value) {
+        int word = (int) (pos >>> 6), offset = (int) (pos & 63);
+        bits[word] ^= value << offset;
+        if (offset + len > 64) {
+            bits[word + 1] ^= value >>> (64 - offset);
+        }
+    }
+
+    // XORs the low len (1 to 64) bits of value into a packed LongBuffer starting at bit pos, as xorBits of a
+    // long[] does.
+    private static void xorBits(LongBuffer bits, long pos, int len, long value) {
+        int word = (int) (pos >>> 6), offset = (int) (pos & 63);
+        bits.put(word, bits.get(word) ^ value << offset);
+        if (offset + len > 64) {
+            bits.put(word + 1, bits.get(word + 1) ^ value >>> (64 - offset));
+        }
+    }
+
+    // Provides a decrypted image a score/cost. Lower cost is better.
+    // The cost is the number of connected components, summed over the color channels, where two
+    // adjacent pixels are connected if their values agree on the primary bit. Only the primary bits
+    // matter, so images are scored from their packed primary bit plane, decrypted row by row as the
+    // candidate's keystream streams in. Components are found with a scanline union-find over reusable
+    // int[] arrays, so scoring an image allocates nothing that grows with the image.
+    private static class ComponentCounter {
+        private int numRows, numCols, rowLength;
+        // The decrypted primary bits of the current and the previous row, in keystream order.
+        private long[] rowBits, previousRowBits;
+        // Each color channel has a block of 2 numCols slots: slots 0 .. numCols - 1 of the block hold the
+        // previous row and slots numCols .. 2 numCols - 1 the current one.
+        private int[] parent, rowRoots, newRoots;
 
-    public static Picture decryptImage(int passwordLength, Picture decryptedImage, int numRetries, boolean printLog) {
-        int[][][] imageArr = pictureToArray(decryptedImage);
-        int numRows = imageArr.length, numCols = imageArr[0].length;
-        int[][][] bestPicture = null;
-        LFSRKey bestLFSR = null;
-        int bestCost = numRows * numCols * 3; // Our best cost will definitely be lower than this.
-        if (printLog) {
-            System.out.println("Provided password length: " + passwordLength);
+        public ComponentCounter(int numRows, int numCols) {
+            this.numRows = numRows;
+            this.numCols = numCols;
+            rowLength = 3 * numCols;
+            rowBits = new long[(rowLength + 63) >>> 6];
+            previousRowBits = new long[rowBits.length];
+            parent = new int[6 * numCols];
+            rowRoots = new int[numCols];
+            newRoots = new int[numCols];
+            Arrays.fill(newRoots, -1);
         }
-        for (int tapPos = 0; tapPos < passwordLength; ++tapPos) {
-            if (printLog) {
-                System.out.println("Candidate tap position: " + tapPos);
-            }
-            // Figure out the impact positions.
-            // impactPositions.get(r, c, colorChannel) returns a boolean array whose ith element is true
-            // if flipping the ith bit in the password impacts the primary bit of the given color channel
-            // of the pixel (r, c).
-            ImpactPositionCalculator impactPositions = new ImpactPositionCalculator(numRows, numCols, tapPos, passwordLength);
-            if (printLog) {
-                System.out.println("Impact position calculation done.\n");
-            }
-            // Actual decryption runs start now.
-            for (int trialNum = 1; trialNum <= numRetries; ++trialNum) {
-                if (printLog) {
-                    System.out.println(String.format("Trial %d of %d", trialNum, numRetries));
+
+        // Scores the primary bit plane laid out as in PixelArray, decrypted with the given primary keystream.
+        // Returns the exact cost if it is at most bound, and otherwise some value greater than bound.
+        // The color channels are scanned together, one row at a time, and scanning stops as soon as a lower
+        // bound on the final count exceeds the bound, so noisy images are rejected early.
+        public int evaluateDecryptionCost(BitBuffer primaryBits, KeystreamGenerator.PrimaryKeystream keystream, int bound) {
+            long numComps = 0;
+            for (int r = 0; r < numRows; ++r) {
+                long rowStart = (long) r * rowLength;
+                for (int i = 0; i < rowLength; i += 64) {
+                    int len = Math.min(64, rowLength - i);
+                    rowBits[i >>> 6] = primaryBits.read(rowStart + i, len) ^ keystream.next(len);
                 }
-                int startRow = (int) (Math.random() * numRows), startCol = (int) (Math.random() * numCols);
-                int colorChannel = (int) (Math.random() * 3);
-                if (printLog) {
-                    String colorChannelAsStr;
-                    if (colorChannel == 0) {
-                        colorChannelAsStr = "R";
-                    } else if (colorChannel == 1) {
-                        colorChannelAsStr = "G";
-                    } else {
-                        colorChannelAsStr = "B";
-                    }
-                    System.out.println(String.format("Iteration starting at (%d, %d), color channel %s", startRow, startCol, colorChannelAsStr));
-                }
-                SquareIterator squareGenerator = new SquareIterator(numRows, numCols, startRow, startCol);
-                GaussianEliminator zeroSolver = new GaussianEliminator(passwordLength);
-                GaussianEliminator oneSolver = new GaussianEliminator(passwordLength);
-                int zeroSolutionFound = 0, oneSolutionFound = 0;
-                int currSquare = squareGenerator.getNextSquare();
-                while (currSquare != -1 && (zeroSolutionFound == 0 || oneSolutionFound == 0)) {
-                    int r = currSquare / numCols, c = currSquare % numCols;
-                    // The ith value of the impact vector is true if that bit has impact.
-                    // The dot product of this vector with the password gives a delta vector.
-                    boolean[] impactVector = impactPositions.get(r, c, colorChannel);
-                    // Find the current primary bit of this square for this color channel.
-                    boolean currPrimary = (imageArr[r][c][colorChannel] >> 7) != 0;
-                    // If it's already been concluded, no need to keep adding rows.
-                    if (zeroSolutionFound == 0) {
-                        zeroSolver.addRow(impactVector, currPrimary);
-                    }
-                    if (oneSolutionFound == 0) {
-                        oneSolver.addRow(impactVector, !currPrimary);
-                    }
-                    zeroSolutionFound = zeroSolver.getSolvable();
-                    oneSolutionFound = oneSolver.getSolvable();
-                    // Get new square.
-                    currSquare = squareGenerator.getNextSquare();
-                }
-                if (zeroSolutionFound == 1) {
-                    LFSRKey zeroSolution = new LFSRKey(zeroSolver.getSolution(), tapPos);
-                    int[][][] outputImage = useLFSR(imageArr, zeroSolution);
-                    int cost = evaluateDecryptionCost(outputImage);
-                    if (cost < bestCost) {
-                        bestCost = cost;
-                        bestPicture = outputImage;
-                        bestLFSR = zeroSolution;
-                    }
-                    if (printLog) {
-                        System.out.println("Zero-primary-bit solution has been found.");
-                        System.out.println(zeroSolution);
-                        System.out.println("Cost: " + cost);
-                    }
-                } else if (printLog) {
-                    System.out.println("No zero-primary-bit solution has been found.");
-                }
-                if (oneSolutionFound == 1) {
-                    LFSRKey oneSolution = new LFSRKey(oneSolver.getSolution(), tapPos);
-                    int[][][] outputImage = useLFSR(imageArr, oneSolution);
-                    int cost = evaluateDecryptionCost(outputImage);
-                    if (cost < bestCost) {
-                        bestCost = cost;
-                        bestPicture = outputImage;
-                        bestLFSR = oneSolution;
-                    }
-                    if (printLog) {
-                        System.out.println("One-primary-bit solution has been found.");
-                        System.out.println(oneSolution);
-                        System.out.println("Cost: " + cost);
+                // Every pixel starts as its own component, and each successful union merges two.
+                numComps += rowLength;
+                int numRuns = 0;
+                // Pixels are compared 21 at a time, since one word of the row holds all 63 of their
+                // primary bits. Bit 3 * j + colorChannel of left and up is set if pixel j of the chunk
+                // differs from its left or upper neighbor.
+                for (int chunk = 0; chunk < numCols; chunk += 21) {
+                    int chunkPixels = Math.min(21, numCols - chunk), len = 3 * chunkPixels;
+                    long bits = readBits(rowBits, 3 * chunk, len);
+                    long left = bits ^ (bits << 3 | (chunk > 0 ? readBits(rowBits, 3 * chunk - 3, 3) : 0));
+                    long up = r > 0 ? bits ^ readBits(previousRowBits, 3 * chunk, len) : -1L;
+                    for (int j = 0; j < chunkPixels; ++j) {
+                        int c = chunk + j;
+                        for (int colorChannel = 0; colorChannel < 3; ++colorChannel) {
+                            int block = 2 * numCols * colorChannel, slot = block + numCols + c, bit = 3 * j + colorChannel;
+                            parent[slot] = slot;
+                            // The primary bits of two neighbors are equal if their xor is 0.
+                            if (c > 0 && (left >>> bit & 1) == 0) {
+                                if (union(slot, slot - 1)) {
+                                    --numComps;
+                                }
+                            } else {
+                                ++numRuns;
+                            }
+                            if ((up >>> bit & 1) == 0 && union(slot, block + c)) {
+                                --numComps;
+                            }
+                        }
                     }
-                } else if (printLog) {
-                    System.out.println("No one-primary-bit solution has been found.");
                 }
+                // Only components touching this row can still merge, and there are at most as many
+                // of them as runs of equal bits in the row. The rest of the count is final.
+                if (numComps - numRuns > bound) {
+                    return (int) Math.min(Integer.MAX_VALUE, numComps - numRuns);
+                }
+                for (int colorChannel = 0; colorChannel < 3; ++colorChannel) {
+                    shiftRow(2 * numCols * colorChannel);
+                }
+                long[] temp = previousRowBits;
+                previousRowBits = rowBits;
+                rowBits = temp;
             }
-            if (printLog) {
-                System.out.println("\n\n"); // We separate out tap positions with multiple newlines for readability.
-                if (bestLFSR == null) {
-                    System.out.println("<No valid LFSR keys found yet>");
+            return (int) Math.min(Integer.MAX_VALUE, numComps);
+        }
+
+        // Moves the current row of the channel block into the previous row's slots. Each of its components is
+        // re-rooted at one of its own squares, since the components it shares with the previous row may be
+        // rooted there.
+        private void shiftRow(int block) {
+            for (int c = 0; c < numCols; ++c) {
+                rowRoots[c] = find(block + numCols + c) - block;
+            }
+            for (int c = 0; c < numCols; ++c) {
+                int root = rowRoots[c];
+                if (root >= numCols) {
+                    parent[block + c] = block + root - numCols;
                 } else {
-                    System.out.println("Current best cost: " + bestCost);
-                    System.out.println(bestLFSR);
+                    if (newRoots[root] < 0) {
+                        newRoots[root] = c;
+                    }
+                    parent[block + c] = block + newRoots[root];
+                }
+            }
+            for (int c = 0; c < numCols; ++c) {
+                if (rowRoots[c] < numCols) {
+                    newRoots[rowRoots[c]] = -1;
                 }
-                System.out.println("\n\n");
             }
         }
-        if (bestPicture == null) {
-            return null;
+
+        // Merges the components of two squares. Returns false if they were already connected.
+        private boolean union(int a, int b) {
+            a = find(a);
+            b = find(b);
+            if (a == b) {
+                return false;
+            }
+            // Hang the later root under the earlier one, which keeps trees shallow in scan order.
+            if (a < b) {
+                parent[b] = a;
+            } else {
+                parent[a] = b;
+            }
+            return true;
+        }
+
+        private int find(int square) {
+            while (parent[square] != square) {
+                // Path halving.
+                parent[square] = parent[parent[square]];
+                square = parent[square];
+            }
+            return square;
         }
-        return arrayToPicture(bestPicture);
     }
 
-    // Provides a decrypted image a score/cost. Lower cost is better.
-    private static int evaluateDecryptionCost(int[][][] imageArr) {
-        int numRows = imageArr.length, numCols = imageArr[0].length;
-        boolean[][] used;
-        int numComps = 0;
-        for (int colorChannel = 0; colorChannel < 3; ++colorChannel) {
-            used = new boolean[numRows][numCols];
-            for (int r = 0; r < numRows; ++r) {
-                for (int c = 0; c < numCols; ++c) {
-                    if (!used[r][c]) {
-                        dfs(r, c, imageArr, used, colorChannel);
-                        ++numComps;
-                    }
+    // Generates LFSR output into packed long[] arrays, with keystream bit i at bit i & 63 of word i >> 6.
+    // Output bit i depends on bits i - N and i - N + d, so whenever the gap N - d is at least 64 a whole
+    // word is produced by two shifted reads. Shorter gaps fall back to lanes of N - d bits.
+    private static class KeystreamGenerator {
+        // Bits a PrimaryKeystream generates at a time, beyond the N it keeps.
+        private static final int STREAM_WINDOW = 1 << 12;
+
+        private int passwordLength, tapDistance, laneWidth;
+        private long[] password;
+        private FeedbackPolynomial feedback;
+
+        public KeystreamGenerator(LFSRKey key) {
+            passwordLength = key.binaryPassword.length;
+            tapDistance = passwordLength - key.tapPos - 1;
+            laneWidth = Math.min(64, passwordLength - tapDistance);
+            password = new long[(passwordLength + 63) >>> 6];
+            for (int i = 0; i < passwordLength; ++i) {
+                if (key.binaryPassword[i]) {
+                    password[i >>> 6] |= 1L << i;
                 }
             }
+            feedback = new FeedbackPolynomial(passwordLength, key.tapPos);
         }
-        return numComps;
-    }
 
-    // Implements the LFSR on an array image representation.
-    private static int[][][] useLFSR(int[][][] imageArr, LFSRKey key) {
-        int numRows = imageArr.length, numCols = imageArr[0].length;
-        int[][][] newImage = new int[numRows][numCols][3];
-        boolean[] encryptionBits = nextNBits(24 * numRows * numCols, key);
-        int currBitPos = 0;
-        for (int r = 0; r < numRows; ++r) {
-            for (int c = 0; c < numCols; ++c) {
-                for (int colorChannel = 0; colorChannel < 3; ++colorChannel) {
-                    int toXor = 0;
-                    for (int i = 0; i < 8; ++i) {
-                        toXor <<= 1;
-                        if (encryptionBits[currBitPos]) {
-                            toXor |= 1;
-                        }
-                        ++currBitPos;
-                    }
-                    newImage[r][c][colorChannel] = imageArr[r][c][colorChannel] ^ toXor;
+        // Returns the first n bits outputted by the LFSR.
+        public BitBuffer generate(long n) {
+            return generate(0, n);
+        }
+
+        // Returns n bits outputted by the LFSR, starting at keystream bit start.
+        // Bit i of the result is keystream bit start + i.
+        public BitBuffer generate(long start, long n) {
+            return generateFrom(registerState(start), n);
+        }
+
+        // Returns keystream bits 0, 8, 16, ..., 8 * (n - 1), which encrypt the primary bits of the image.
+        // Since f(x)^8 = x^(8N) + x^(8d) + 1 over GF(2), every eighth keystream bit obeys the same
+        // recurrence as the keystream itself, so only the first N of them have to be found directly.
+        public BitBuffer generatePrimaryBits(long n) {
+            long head = Math.min(n, passwordLength);
+            return decimate(generate(8 * head), 0, n);
+        }
+
+        // Returns a stream of the primary keystream bits, as generatePrimaryBits gives them.
+        public PrimaryKeystream primaryKeystream() {
+            return new PrimaryKeystream();
+        }
+
+        // Returns the eight bit planes of keystream bits 8 * start to 8 * (start + n) - 1: bit i of plane
+        // offset is keystream bit 8 * (start + i) + offset. Each plane follows the recurrence, so one
+        // jump-ahead to 8 * start gives the first N bits of all of them.
+        public BitBuffer[] generateBitPlanes(long start, long n) {
+            long head = Math.min(n, passwordLength);
+            BitBuffer keystreamHead = generate(8 * start, 8 * head);
+            BitBuffer[] planes = new BitBuffer[8];
+            for (int offset = 0; offset < 8; ++offset) {
+                planes[offset] = decimate(keystreamHead, offset, n);
+            }
+            return planes;
+        }
+
+        // Returns n bits of the decimated sequence keystream[8 * i + offset], given at least its first N bits
+        // (or all n, if fewer) in keystream form.
+        private BitBuffer decimate(BitBuffer keystreamHead, int offset, long n) {
+            int head = (int) Math.min(n, passwordLength);
+            BitBuffer decimated = new BitBuffer(n);
+            for (int i = 0; i < head; ++i) {
+                decimated.xor(i, 1, keystreamHead.read(8L * i + offset, 1));
+            }
+            extend(decimated, passwordLength, n);
+            return decimated;
+        }
+
+        // Returns n bits of the recurrence started from the given N-bit register state.
+        private BitBuffer generateFrom(long[] state, long n) {
+            BitBuffer keystream = new BitBuffer(n);
+            // The first N outputs read the initial register state, so they come from a short register
+            // history that holds that state followed by the outputs.
+            int head = (int) Math.min(n, passwordLength);
+            BitBuffer history = new BitBuffer(passwordLength + head);
+            for (int i = 0; i < passwordLength; i += 64) {
+                int len = Math.min(64, passwordLength - i);
+                history.xor(i, len, readBits(state, i, len));
+            }
+            extend(history, passwordLength, passwordLength + head);
+            for (int i = 0; i < head; i += 64) {
+                int len = Math.min(64, head - i);
+                keystream.xor(i, len, history.read(passwordLength + i, len));
+            }
+            // From here on every output only depends on earlier outputs.
+            extend(keystream, passwordLength, n);
+            return keystream;
+        }
+
+        // The primary keystream, read front to back at most 64 bits at a time. Only a window of N + STREAM_WINDOW
+        // bits is kept, and it is slid forward and refilled from the recurrence as it runs out, so streaming the
+        // keystream of a whole image takes O(N) memory.
+        public class PrimaryKeystream {
+            private BitBuffer window, spare;
+            private int windowLength, position;
+
+            private PrimaryKeystream() {
+                windowLength = passwordLength + STREAM_WINDOW;
+                window = generatePrimaryBits(windowLength);
+                spare = new BitBuffer(windowLength);
+            }
+
+            // Returns the next len (1 to 64) bits, with the earliest in the lowest position.
+            public long next(int len) {
+                if (position + len > windowLength) {
+                    slide();
+                }
+                long bits = window.read(position, len);
+                position += len;
+                return bits;
+            }
+
+            // Moves the unread bits, or the last N bits if those are more, to the front of the window, and
+            // fills the rest of it from the recurrence.
+            private void slide() {
+                int keep = Math.max(windowLength - position, passwordLength), from = windowLength - keep;
+                for (long word = 0; word < spare.getNumWords(); ++word) {
+                    spare.xorWord(word, spare.getWord(word));
+                }
+                for (int i = 0; i < keep; i += 64) {
+                    int len = Math.min(64, keep - i);
+                    spare.xor(i, len, window.read(from + i, len));
+                }
+                extend(spare, keep, windowLength);
+                BitBuffer temp = window;
+                window = spare;
+                spare = temp;
+                position -= from;
+            }
+        }
+
+        // Returns the N register bits that keystream bit start is computed from, packed. These are
+        // sequence bits s[start .. start + N), where s begins with the password and continues with
+        // the keystream. Bit s[m] is the password dotted with x^m mod f(x).
+        private long[] registerState(long start) {
+            if (start == 0) {
+                return password;
+            }
+            long[] state = new long[password.length];
+            long[] power = feedback.powerOfX(start);
+            for (int i = 0; i < passwordLength; ++i) {
+                int parity = 0;
+                for (int j = 0; j < password.length; ++j) {
+                    parity ^= Long.bitCount(power[j] & password[j]);
                 }
+                if ((parity & 1) != 0) {
+                    state[i >>> 6] |= 1L << i;
+                }
+                feedback.multiplyByX(power);
+            }
+            return state;
+        }
+
+        // Fills bits [from, to) of a zeroed range using bits[i] = bits[i - N] ^ bits[i - N + d].
+        private void extend(BitBuffer bits, long from, long to) {
+            for (long i = from; i < to; ) {
+                // Never let a lane cross a word boundary, so full lanes become aligned word writes.
+                int len = (int) Math.min(Math.min(laneWidth, 64 - (i & 63)), to - i);
+                long lane = bits.read(i - passwordLength, len) ^ bits.read(i - passwordLength + tapDistance, len);
+                bits.xor(i, len, lane);
+                i += len;
             }
         }
-        return newImage;
     }
 
-    // DFS search
-    private static void dfs(int rootR, int rootC, int[][][] imageArr, boolean[][] used, int colorChannel) {
-        // Making this recursive took up too much memory.
-        // We'll use a stack instead.
-        // We encapsulate (r,c) as the integer r * numCols + c.
-        int numRows = imageArr.length, numCols = imageArr[0].length;
-        Stack<Integer> dfsStack = new Stack<>();
-        dfsStack.push(rootR * numCols + rootC);
-        while (!dfsStack.empty()) {
-            int top = dfsStack.pop();
-            int r = top / numCols;
-            int c = top % numCols;            
-            used[r][c] = true;
-            // The primary bit of two color values can be asserted to
-            // be equal if the xor of the numbers has primary bit 0.
-            if (r > 0 && !used[r - 1][c] 
-            && (imageArr[r][c][colorChannel] ^ imageArr[r - 1][c][colorChannel]) >> 7 == 0) {
-                dfsStack.push((r - 1) * numCols + c);
+    // Finds the shortest linear recurrence that generates a packed bit sequence, with the Berlekamp-Massey
+    // algorithm. The connection polynomial C(x) = 1 + c_1 x + ... + c_L x^L means that
+    // s[i] = c_1 s[i - 1] ^ ... ^ c_L s[i - L] for every i >= L, where L is the linear complexity.
+    // Runs in O(n^2 / 64) word operations for a sequence of n bits.
+    private static class BerlekampMassey {
+        private long[] connection;
+        private int linearComplexity;
+
+        public BerlekampMassey(long[] sequence, int length) {
+            int numWords = (length + 64) >>> 6;
+            // Reversing the sequence turns the window s[i - L .. i] into a run of bits that can be read
+            // in words and dotted with the connection polynomial.
+            long[] reversed = new long[numWords + 1];
+            for (int i = 0; i < length; ++i) {
+                reversed[(length - 1 - i) >>> 6] |= (sequence[i >>> 6] >>> i & 1) << (length - 1 - i);
+            }
+            connection = new long[numWords];
+            long[] previous = new long[numWords];
+            connection[0] = previous[0] = 1;
+            linearComplexity = 0;
+            int lastChange = -1;
+            for (int i = 0; i < length; ++i) {
+                // The discrepancy is sum_j c_j s[i - j], and s[i - j] is bit length - 1 - i + j of reversed.
+                long offset = length - 1 - i;
+                int parity = 0;
+                for (int j = 0; j <= linearComplexity; j += 64) {
+                    int len = Math.min(64, linearComplexity + 1 - j);
+                    parity ^= Long.bitCount(readBits(connection, j, len) & readBits(reversed, offset + j, len));
+                }
+                if ((parity & 1) == 0) {
+                    continue;
+                }
+                long[] temp = connection.clone();
+                // C(x) += x^(i - lastChange) B(x), where B is the connection polynomial before the last change.
+                int shift = i - lastChange;
+                for (int j = 0; j + shift <= length; j += 64) {
+                    int len = Math.min(64, length + 1 - shift - j);
+                    xorBits(connection, j + shift, len, readBits(previous, j, len));
+                }
+                if (2 * linearComplexity <= i) {
+                    linearComplexity = i + 1 - linearComplexity;
+                    lastChange = i;
+                    previous = temp;
+                }
+            }
+        }
+
+        // Returns the tap positions whose feedback polynomial f(x) = x^N + x^d + 1 is a multiple of the
+        // minimal polynomial of the sequence, x^L C(1/x). A sequence generated with feedback f has a
+        // minimal polynomial that divides f: usually f itself, or a factor of it if f is reducible and the
+        // password happens to have no component along the other factors.
+        public List<Integer> getCompatibleTapPositions(int passwordLength) {
+            List<Integer> tapPositions = new ArrayList<>();
+            // Much shorter recurrences come from degenerate runs, such as constant ones, and would
+            // match too many taps to be worth checking.
+            if (linearComplexity > passwordLength || 2 * linearComplexity < passwordLength
+                    || (connection[linearComplexity >>> 6] >>> linearComplexity & 1) == 0) {
+                return tapPositions;
             }
-            if (c > 0 && !used[r][c - 1]
-            && (imageArr[r][c][colorChannel] ^ imageArr[r][c - 1][colorChannel]) >> 7 == 0) {
-                dfsStack.push(r * numCols + c - 1);
+            int numWords = (linearComplexity + 64) >>> 6;
+            long[] minimalPolynomial = new long[numWords];
+            for (int i = 0; i <= linearComplexity; ++i) {
+                minimalPolynomial[i >>> 6] |= (connection[(linearComplexity - i) >>> 6] >>> (linearComplexity - i) & 1) << i;
             }
-            if (r < numRows - 1 && !used[r + 1][c]
-            && (imageArr[r][c][colorChannel] ^ imageArr[r + 1][c][colorChannel]) >> 7 == 0) {
-                dfsStack.push((r + 1) * numCols + c);
+            // f is a multiple of the minimal polynomial exactly when x^d = x^N + 1 modulo it.
+            long[] power = new long[numWords];
+            power[0] = 1;
+            for (int i = 0; i < passwordLength; ++i) {
+                multiplyByXModulo(power, minimalPolynomial);
             }
-            if (c < numCols - 1 && !used[r][c + 1]
-            && (imageArr[r][c][colorChannel] ^ imageArr[r][c + 1][colorChannel]) >> 7 == 0) {
-                dfsStack.push(r * numCols + c + 1);
+            long[] target = power.clone();
+            target[0] ^= 1;
+            Arrays.fill(power, 0);
+            power[0] = 1;
+            for (int tapDistance = 1; tapDistance < passwordLength; ++tapDistance) {
+                multiplyByXModulo(power, minimalPolynomial);
+                if (Arrays.equals(power, target)) {
+                    tapPositions.add(passwordLength - tapDistance - 1);
+                }
             }
+            return tapPositions;
         }
-    }
 
-    // Finds the next n bits outputted by an LFSR.
-    private static boolean[] nextNBits(int n, LFSRKey lfsr) {
-        boolean[] values = new boolean[n];
-        int passwordLength = lfsr.binaryPassword.length;
-        int leftIndex = 0, rightIndex = passwordLength - lfsr.tapPos - 1;
-        for (int i = 0; i < n; ++i) {
-            if (leftIndex >= passwordLength) {
-                // We have exceeded bounds of the initial password.
-                values[i] ^= values[leftIndex - passwordLength];
-            } else {
-                values[i] ^= lfsr.binaryPassword[leftIndex];
+        // Replaces a with x * a modulo the monic polynomial g of degree linearComplexity.
+        private void multiplyByXModulo(long[] a, long[] g) {
+            for (int i = a.length - 1; i > 0; --i) {
+                a[i] = (a[i] << 1) | (a[i - 1] >>> 63);
             }
-            if (rightIndex >= passwordLength) {
-                values[i] ^= values[rightIndex - passwordLength];
-            } else {
-                values[i] ^= lfsr.binaryPassword[rightIndex];
+            a[0] <<= 1;
+            if ((a[linearComplexity >>> 6] >>> linearComplexity & 1) != 0) {
+                for (int i = 0; i < a.length; ++i) {
+                    a[i] ^= g[i];
+                }
             }
-            ++leftIndex;
-            ++rightIndex;
         }
-        return values;
     }
 
-    // Convert picture to 3D array. arr[r][c] corresponds to the rgb values of pixel (r, c).
-    // This converts rows in the image to columns in the array, so row-major iteration is used.
-    private static int[][][] pictureToArray(Picture pic) {
-        int width = pic.width(), height = pic.height();
-        int[][][] arrayRep = new int[width][height][3];
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                Color currPixel = pic.get(x, y);
-                // Represent the color of the current pixel as a list and add it on.
-                arrayRep[x][y] = new int[]{currPixel.getRed(), currPixel.getGreen(), currPixel.getBlue()};
+    // Ranks tap positions from the ciphertext alone. For the right tap position, the keystream bits cancel
+    // out of c[i] ^ c[i - N] ^ c[i - N + d] over the primary bits, leaving the same combination of plaintext
+    // bits, which is biased towards 0 when the three pixels look alike. For a wrong tap position the
+    // keystream does not cancel and the combination is unbiased. The check is made on the primary bits
+    // themselves and on the XOR of vertically adjacent pixels, which is far less noisy in smooth images,
+    // and the larger bias counts. Scoring a tap position takes O(M / 64) word operations.
+    private static class TapDistinguisher {
+        private BitBuffer primaryBits;
+        private long numPrimaryBits, numDifferences;
+
+        // The neighbor differences are read off the primary bits as they are checked, so the distinguisher
+        // keeps no image-sized state of its own.
+        public TapDistinguisher(BitBuffer primaryBits, long numPrimaryBits) {
+            this.primaryBits = primaryBits;
+            this.numPrimaryBits = numPrimaryBits;
+            numDifferences = Math.max(0, numPrimaryBits - 3);
+        }
+
+        // Returns how many standard deviations fewer checks fail than the half a wrong tap position
+        // gives, for the given password length and tap position.
+        public double score(int passwordLength, int tapPos) {
+            // The last tap position cancels the feedback out entirely, so its checks are meaningless.
+            if (tapPos >= passwordLength - 1) {
+                return 0;
+            }
+            return Math.max(checkBias(primaryBits, numPrimaryBits, passwordLength, tapPos, 0),
+                    checkBias(primaryBits, numDifferences, passwordLength, tapPos, 3));
+        }
+
+        private static double checkBias(BitBuffer bits, long length, int passwordLength, int tapPos, int lag) {
+            long numChecks = length - passwordLength;
+            if (numChecks <= 0) {
+                return 0;
             }
+            long numFailedChecks = countFailedChecks(bits, length, passwordLength, tapPos, lag);
+            return (numChecks - 2.0 * numFailedChecks) / Math.sqrt(numChecks);
         }
-        return arrayRep;       
     }
 
-    // Convert 3D array to picture. arr[r][c] corresponds to the rgb values of pixel (r, c).
-    // This converts rows in the image to columns in the array, so row-major iteration is used.
-    private static Picture arrayToPicture(int[][][] arrayRep) {
-        // Since each column in the picture is a row in the array, the width is the length of a column here.
-        int width = arrayRep.length, height = arrayRep[0].length;
-        Picture outputImage = new Picture(width, height);
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                int[] currPixelArr = arrayRep[x][y];
-                Color currPixel = new Color(currPixelArr[0], currPixelArr[1], currPixelArr[2]);
-                outputImage.set(x, y, currPixel);
+    // Decodes a noisy observation of an LFSR sequence with the fast correlation attack of Meier and
+    // Staffelbach. The sequence obeys s[i] = s[i - N] ^ s[i - N + d], and so does every 2^k-th power of the
+    // feedback polynomial, which gives each bit up to three parity checks per power, spread across the
+    // whole observation. Iterative belief propagation over those checks corrects the noisy bits.
+    // Log-likelihood ratios are positive for bits that are more likely to be 0.
+    private static class FastCorrelationDecoder {
+        // Messages are combined with the min-sum rule, scaled down since a bit's own belief is not
+        // taken out of the messages it receives.
+        private static final float MESSAGE_SCALE = 0.5f, MAX_LIKELIHOOD = 30f;
+
+        private BitBuffer observed;
+        private int length, passwordLength, tapDistance, numFailedChecks, numChecks;
+
+        public FastCorrelationDecoder(BitBuffer observed, int length, int passwordLength, int tapPos) {
+            this.observed = observed;
+            this.length = length;
+            this.passwordLength = passwordLength;
+            tapDistance = passwordLength - tapPos - 1;
+            numFailedChecks = (int) countFailedChecks(observed, length, passwordLength, tapPos);
+            numChecks = Math.max(0, length - passwordLength);
+        }
+
+        // Returns true if the observation fails the feedback checks significantly less often than the
+        // half of the time a wrong tap position gives, by more than the given number of standard deviations.
+        public boolean isCorrelated(double numDeviations) {
+            return numChecks > 0 && numChecks - 2.0 * numFailedChecks > numDeviations * Math.sqrt(numChecks);
+        }
+
+        // Returns the probability that an observed bit is wrong, estimated from the failed checks: a
+        // check over three bits with error probability q fails with probability (1 - (1 - 2q)^3) / 2.
+        public double getNoiseEstimate() {
+            double checkBias = Math.max(1e-9, 1 - 2.0 * numFailedChecks / numChecks);
+            return (1 - Math.cbrt(checkBias)) / 2;
+        }
+
+        // Runs the given number of belief propagation rounds and returns the log-likelihood ratio of
+        // every bit. The priors are read off the observation again each round rather than kept, so only
+        // two floats per bit are held.
+        public float[] decode(int numRounds) {
+            double noise = Math.min(0.49, Math.max(getNoiseEstimate(), 1e-4));
+            float prior = (float) Math.log((1 - noise) / noise);
+            float[] likelihoods = new float[length], next = new float[length];
+            setPriors(likelihoods, prior);
+            for (int round = 0; round < numRounds; ++round) {
+                setPriors(next, prior);
+                // Powers 2^k of the feedback polynomial give checks with gaps 2^k N and 2^k (N - d).
+                for (long a = passwordLength, b = passwordLength - tapDistance; a < length; a <<= 1, b <<= 1) {
+                    int outer = (int) a, inner = (int) b;
+                    for (int i = outer; i < length; ++i) {
+                        float top = likelihoods[i], bottom = likelihoods[i - outer], middle = likelihoods[i - inner];
+                        next[i] += MESSAGE_SCALE * combine(bottom, middle);
+                        next[i - outer] += MESSAGE_SCALE * combine(top, middle);
+                        next[i - inner] += MESSAGE_SCALE * combine(top, bottom);
+                    }
+                }
+                for (int i = 0; i < length; ++i) {
+                    likelihoods[i] = Math.max(-MAX_LIKELIHOOD, Math.min(MAX_LIKELIHOOD, next[i]));
+                }
+            }
+            return likelihoods;
+        }
+
+        // Sets every bit's log-likelihood ratio to the prior, negated where the observed bit is 1.
+        private void setPriors(float[] likelihoods, float prior) {
+            for (int i = 0; i < length; i += 64) {
+                int len = Math.min(64, length - i);
+                long word = observed.read(i, len);
+                for (int j = 0; j < len; ++j) {
+                    likelihoods[i + j] = (word >>> j & 1) != 0 ? -prior : prior;
+                }
             }
         }
-        return outputImage;
+
+        // The min-sum estimate of the log-likelihood ratio of the XOR of two bits.
+        private static float combine(float x, float y) {
+            float magnitude = Math.min(Math.abs(x), Math.abs(y));
+            return (x < 0) != (y < 0) ? -magnitude : magnitude;
+        }
     }
 
     private static class ImpactPositionCalculator {
-        private int tapDistance, numCols, passwordLength;
-        private boolean[] leftBits, tapBits;
-
-        // We can use the similar behavior of the LFSR across different password bit positions to
-        // massively speed up impact position finding. Instantiation takes O(numRows * numCols) time,
-        // albeit with a rather large constant factor of 24. Get queries happen in O(1).
-        public ImpactPositionCalculator(int numRows, int numCols, int tapPos, int passwordLength) {
-            // Distance between leftmost bit and tap position bit.
+        private int numCols, passwordLength;
+        private FeedbackPolynomial feedback;
+
+        // Keystream bit i equals the password dotted with the coefficients of x^(N + i) modulo the
+        // feedback polynomial, so any impact vector can be computed directly at its keystream offset
+        // by jumping ahead. Instantiation takes O(1) time and memory, independent of the image size.
+        // Get queries take O(N log(numRows * numCols) / 64) word operations.
+        public ImpactPositionCalculator(int numCols, int tapPos, int passwordLength) {
             this.passwordLength = passwordLength;
             this.numCols = numCols; // This is to find the right bit index.
-            tapDistance = passwordLength - tapPos - 1;
-            LFSRKey trialKey = new LFSRKey(new boolean[passwordLength], tapPos);
-            trialKey.binaryPassword[0] = true;
-            leftBits = nextNBits(24 * numRows * numCols, trialKey);
-            trialKey.binaryPassword[0] = false;
-            trialKey.binaryPassword[tapDistance] = true;
-            tapBits = nextNBits(24 * numRows * numCols, trialKey);
+            feedback = new FeedbackPolynomial(passwordLength, tapPos);
         }
 
-        // Returns boolean array. The ith entry is true if flipping the ith password bit
+        // Returns a packed bit vector. Bit i is set if flipping the ith password bit
         // impacts the primary bit of the given color channel of pixel (row, col).
-        public boolean[] get(int row, int col, int colorChannel) {
-            int indexDesired = 24 * row * numCols + 24 * col + 8 * colorChannel;
-            boolean[] impactVector = new boolean[passwordLength];
-            int actualIndex = indexDesired;
-            for (int i = 0; i < tapDistance; ++i) {
-                impactVector[i] = actualIndex < 0 ? false : leftBits[actualIndex];
-                --actualIndex;
+        public long[] get(int row, int col, int colorChannel) {
+            long indexDesired = 24L * row * numCols + 24L * col + 8 * colorChannel;
+            return feedback.powerOfX(passwordLength + indexDesired);
+        }
+    }
+
+    // Solves for the password from N consecutive primary keystream bits v[m0 .. m0 + N), the bits a run of
+    // keystream-adjacent pixels is encrypted with. Bit v[m0 + t] is the password dotted with
+    // x^(N + 8m0) * x^(8t) mod f(x), so the systems of all runs are one fixed matrix W, with rows x^(8t),
+    // shifted by the jump x^(N + 8m0). W is inverted once per tap position in O(N^3 / 64) word operations,
+    // after which every run is solved in O(N^2 / 64) instead of by a fresh elimination. W is invertible
+    // exactly when the eighth powers of x span the polynomials modulo f(x), which holds when f is squarefree.
+    private static class PrimaryRunSolver {
+        private int passwordLength, tapPos, numWords;
+        // Row i of the inverse of W. Its dot product with a run's bits gives sequence bit s[N + 8m0 + i].
+        private long[][] inverse;
+
+        public PrimaryRunSolver(int passwordLength, int tapPos) {
+            this.passwordLength = passwordLength;
+            this.tapPos = tapPos;
+            numWords = (passwordLength + 63) >>> 6;
+            FeedbackPolynomial feedback = new FeedbackPolynomial(passwordLength, tapPos);
+            // Gauss-Jordan elimination turns the augmented rows [W | I] into [I | W^-1].
+            long[][] rows = new long[passwordLength][];
+            long[] power = new long[numWords];
+            power[0] = 1;
+            for (int t = 0; t < passwordLength; ++t) {
+                rows[t] = Arrays.copyOf(power, 2 * numWords);
+                rows[t][numWords + (t >>> 6)] |= 1L << t;
+                for (int i = 0; i < 8; ++i) {
+                    feedback.multiplyByX(power);
+                }
+            }
+            for (int i = 0; i < passwordLength; ++i) {
+                int pivot = i;
+                while (pivot < passwordLength && (rows[pivot][i >>> 6] >>> i & 1) == 0) {
+                    ++pivot;
+                }
+                if (pivot == passwordLength) {
+                    return;
+                }
+                long[] pivotRow = rows[pivot];
+                rows[pivot] = rows[i];
+                rows[i] = pivotRow;
+                for (int r = 0; r < passwordLength; ++r) {
+                    if (r != i && (rows[r][i >>> 6] >>> i & 1) != 0) {
+                        for (int j = i >>> 6; j < 2 * numWords; ++j) {
+                            rows[r][j] ^= pivotRow[j];
+                        }
+                    }
+                }
+            }
+            inverse = new long[passwordLength][];
+            for (int i = 0; i < passwordLength; ++i) {
+                inverse[i] = Arrays.copyOfRange(rows[i], numWords, 2 * numWords);
+            }
+        }
+
+        // Returns false if W is singular, in which case runs do not determine the password.
+        public boolean isSolvable() {
+            return inverse != null;
+        }
+
+        // Returns true if bits N and on of the packed runBits follow from the bits before them by the
+        // recurrence v[m] = v[m - N] ^ v[m - N + d], as every run of primary keystream bits does.
+        public boolean fitsRecurrence(long[] runBits, int length) {
+            int tapDistance = passwordLength - tapPos - 1;
+            for (int m = passwordLength; m < length; ++m) {
+                if (readBits(runBits, m, 1) != (readBits(runBits, m - passwordLength, 1)
+                        ^ readBits(runBits, m - passwordLength + tapDistance, 1))) {
+                    return false;
+                }
             }
-            actualIndex = indexDesired;
-            for (int i = tapDistance; i < passwordLength; ++i) {
-                impactVector[i] = actualIndex < 0 ? false : tapBits[actualIndex];
-                --actualIndex;
+            return true;
+        }
+
+        // Returns the password whose primary keystream bits m0 .. m0 + N are the first N packed runBits.
+        public boolean[] solve(long[] runBits, long firstPrimaryBit) {
+            // The run determines the register state at sequence bit start = N + 8m0.
+            long start = passwordLength + 8 * firstPrimaryBit;
+            boolean[] mirroredState = new boolean[passwordLength];
+            for (int i = 0; i < passwordLength; ++i) {
+                int parity = 0;
+                for (int j = 0; j < numWords; ++j) {
+                    parity ^= Long.bitCount(inverse[i][j] & runBits[j]);
+                }
+                mirroredState[passwordLength - 1 - i] = (parity & 1) != 0;
+            }
+            // Read backwards, the sequence obeys the mirrored recurrence with feedback x^N + x^(N - d) + 1.
+            // Its bit j is s[start + N - 1 - j], so running it forward by start steps reaches the password.
+            KeystreamGenerator mirrored = new KeystreamGenerator(new LFSRKey(mirroredState, passwordLength - tapPos - 2));
+            long[] mirroredPassword = mirrored.registerState(start);
+            boolean[] password = new boolean[passwordLength];
+            for (int i = 0; i < passwordLength; ++i) {
+                password[i] = readBits(mirroredPassword, passwordLength - 1 - i, 1) != 0;
+            }
+            return password;
+        }
+    }
+
+    // Arithmetic modulo the LFSR feedback polynomial f(x) = x^N + x^d + 1 over GF(2), where N is the
+    // password length and d is the distance between the leftmost bit and the tap position.
+    // Polynomials of degree < N are packed into long[] with the coefficient of x^j at bit j.
+    private static class FeedbackPolynomial {
+        private int passwordLength, tapDistance, numWords;
+
+        public FeedbackPolynomial(int passwordLength, int tapPos) {
+            this.passwordLength = passwordLength;
+            tapDistance = passwordLength - tapPos - 1;
+            numWords = (passwordLength + 63) >>> 6;
+        }
+
+        // Returns x^exponent mod f(x) by square-and-multiply. Squaring is linear over GF(2) and
+        // multiplying by x is a shift, so each step costs O(N / 64) word operations.
+        public long[] powerOfX(long exponent) {
+            long[] result = new long[numWords];
+            int shift = 64 - Long.numberOfLeadingZeros(exponent);
+            // Start from the longest leading part of the exponent that needs no reduction.
+            while (shift > 0 && (exponent >>> (shift - 1)) < passwordLength) {
+                --shift;
+            }
+            long prefix = exponent >>> shift;
+            result[(int) (prefix >>> 6)] |= 1L << prefix;
+            long[] scratch = new long[2 * numWords + 1];
+            for (int bit = shift - 1; bit >= 0; --bit) {
+                square(result, scratch);
+                if ((exponent >>> bit & 1) != 0) {
+                    multiplyByX(result);
+                }
+            }
+            return result;
+        }
+
+        // Replaces a with a^2 mod f(x), using scratch as working space.
+        private void square(long[] a, long[] scratch) {
+            // Squaring a GF(2) polynomial spreads its coefficients out to the even positions.
+            for (int i = 0; i < numWords; ++i) {
+                scratch[2 * i] = spreadBits(a[i]);
+                scratch[2 * i + 1] = spreadBits(a[i] >>> 32);
+            }
+            scratch[2 * numWords] = 0;
+            reduce(scratch, 2L * passwordLength - 2);
+            System.arraycopy(scratch, 0, a, 0, numWords);
+        }
+
+        // Replaces a with x * a mod f(x).
+        private void multiplyByX(long[] a) {
+            boolean overflow = readBits(a, passwordLength - 1, 1) != 0;
+            for (int i = numWords - 1; i > 0; --i) {
+                a[i] = (a[i] << 1) | (a[i - 1] >>> 63);
+            }
+            a[0] <<= 1;
+            a[numWords - 1] &= -1L >>> (64 * numWords - passwordLength);
+            if (overflow) {
+                // x^N = x^d + 1. When d is 0 the two terms cancel.
+                a[0] ^= 1;
+                a[tapDistance >>> 6] ^= 1L << tapDistance;
+            }
+        }
+
+        // Reduces the polynomial in a, whose degree is at most topBit, modulo f(x) in place.
+        private void reduce(long[] a, long topBit) {
+            int chunkSize = Math.min(64, passwordLength);
+            int feedbackGap = passwordLength - tapDistance;
+            // Fold the high coefficients down a chunk at a time, from the top. A chunk t at offset lo
+            // becomes t * x^(lo - N) + t * x^(lo - gap), and the part of the second term that lands
+            // back inside the chunk is folded again. The repeated folds collapse into a prefix XOR.
+            for (long hi = topBit; hi >= passwordLength; ) {
+                long lo = Math.max(passwordLength, hi - chunkSize + 1);
+                int len = (int) (hi - lo + 1);
+                long chunk = readBits(a, lo, len);
+                if (chunk != 0) {
+                    xorBits(a, lo, len, chunk);
+                    for (int shift = feedbackGap; shift < len; shift <<= 1) {
+                        chunk ^= chunk >>> shift;
+                    }
+                    xorBits(a, lo - passwordLength, len, chunk);
+                    int lowLen = Math.min(feedbackGap, len);
+                    xorBits(a, lo - feedbackGap, lowLen, lowLen == 64 ? chunk : chunk & ((1L << lowLen) - 1));
+                }
+                hi = lo - 1;
             }
-            return impactVector;
+        }
+
+        // Moves bit j of the low 32 bits of x to bit 2j.
+        private static long spreadBits(long x) {
+            x &= 0xFFFFFFFFL;
+            x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+            x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+            x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+            x = (x | (x << 2)) & 0x3333333333333333L;
+            x = (x | (x << 1)) & 0x5555555555555555L;
+            return x;
         }
     }
 
+    // Solves several linear systems over GF(2) that share one coefficient matrix and differ
+    // only in their right-hand sides. Column k of the right-hand side is bit k of the yValues
+    // passed to addRow, so up to 64 systems are reduced in a single elimination pass.
     private static class GaussianEliminator {
-        private int length, numSpotsNeeded, solvability;
-        private boolean[][] squareMatrix;
-        private boolean[] results;
+        private int length, numWords, numColumns, numSpotsNeeded;
+        // Each row is packed 64 unknowns to a word, so bit j of the row lives in
+        // squareMatrix[i][j >> 6] at position j & 63. Row i, once present, has its
+        // lowest set bit at position i.
+        private long[][] squareMatrix;
+        private long[] results;
+        private long inconsistentColumns;
 
-        public GaussianEliminator(int length) {
+        public GaussianEliminator(int length, int numColumns) {
+            if (numColumns < 1 || numColumns > 64) {
+                throw new IllegalArgumentException("Number of right-hand-side columns must be between 1 and 64");
+            }
             this.length = numSpotsNeeded = length;
-            solvability = 0;
-            squareMatrix = new boolean[length][length];
-            results = new boolean[length];
+            this.numColumns = numColumns;
+            numWords = (length + 63) >>> 6;
+            squareMatrix = new long[length][];
+            results = new long[length];
+            inconsistentColumns = 0;
+        }
+
+        // Returns 1 if solution is found, 0 if solution is not yet found, and -1 if no solution exists
+        // for the given right-hand-side column.
+        public int getSolvable(int column) {
+            if ((inconsistentColumns >>> column & 1) != 0) {
+                return -1;
+            }
+            return numSpotsNeeded == 0 ? 1 : 0;
         }
 
-        // Returns 1 if solution is found, 0 if solution is not yet found, and -1 if no solution exists.
-        public int getSolvable() {
-            return solvability;
+        // Returns true once every column is either solved or known to have no solution.
+        public boolean isFinished() {
+            return numSpotsNeeded == 0 || Long.bitCount(inconsistentColumns) == numColumns;
         }
 
-        // Add a row to the linear system.
-        public void addRow(boolean[] xVector, boolean yValue) {
-            if (solvability == -1) {
+        // Add a packed row to the linear system. The array is not modified.
+        public void addRow(long[] xVector, long yValues) {
+            if (isFinished()) {
                 return;
             }
             // We can't change the values in the xVector array without messing things up on the outside.
             // We need to create a clone.
-            boolean[] xVectorClone = xVector.clone();
-            boolean rowInserted = false;
-            for (int i = 0; i < length && !rowInserted; ++i) {
-                if (xVectorClone[i]) {
-                    // Current bit is set to true.
-                    if (!squareMatrix[i][i]) {
+            long[] xVectorClone = xVector.clone();
+            for (int word = 0; word < numWords; ++word) {
+                // Reducing by row i only touches bits >= i, so the words before this one stay clear.
+                while (xVectorClone[word] != 0) {
+                    int i = (word << 6) + Long.numberOfTrailingZeros(xVectorClone[word]);
+                    if (squareMatrix[i] == null) {
                         // We don't have an entry for this position yet. We can add this.
-                        for (int j = 0; j < length; ++j) {
-                            squareMatrix[i][j] = xVectorClone[j];
-                        }
-                        results[i] = yValue;
+                        squareMatrix[i] = xVectorClone;
+                        results[i] = yValues;
                         --numSpotsNeeded;
-                        rowInserted = true;
-                    } else {
-                        // Add the ith row to xVectorClone.
-                        for (int j = 0; j < length; ++j) {
-                            xVectorClone[j] ^= squareMatrix[i][j];
-                        }
-                        yValue ^= results[i];
+                        return;
                     }
+                    // Add the ith row to xVectorClone.
+                    long[] row = squareMatrix[i];
+                    for (int j = word; j < numWords; ++j) {
+                        xVectorClone[j] ^= row[j];
+                    }
+                    yValues ^= results[i];
                 }
             }
-            if (!rowInserted) {
-                if (yValue) {
-                    solvability = -1;
-                }
-            } else if (numSpotsNeeded == 0) {
-                solvability = 1;
-            }
+            // The row reduced to zero, so it is redundant for some columns and contradicts the rest.
+            inconsistentColumns |= yValues;
         }
 
-        // Returns a solution. Note that the client needs to check solvability == 1 before using this.
-        // Otherwise the answer may not be correct.
-        public boolean[] getSolution() {
+        // Returns the solution for the given column. Note that the client needs to check
+        // getSolvable(column) == 1 before using this. Otherwise the answer may not be correct.
+        public boolean[] getSolution(int column) {
+            long[] packedSolution = getPackedSolution(column);
             boolean[] solution = new boolean[length];
+            for (int i = 0; i < length; ++i) {
+                solution[i] = (packedSolution[i >>> 6] >>> i & 1) != 0;
+            }
+            return solution;
+        }
+
+        // Returns the solution for the given column, packed like the rows.
+        public long[] getPackedSolution(int column) {
+            long[] packedSolution = new long[numWords];
             for (int i = length - 1; i >= 0; --i) {
                 // Use the previously calculated values to solve row i of the square matrix.
-                solution[i] = results[i];
-                for (int j = i + 1; j < length; ++j) {
-                    solution[i] ^= (solution[j] & squareMatrix[i][j]);
+                // Bit i of the packed solution is still clear, so the parity only covers j > i.
+                long[] row = squareMatrix[i];
+                int parity = (int) (results[i] >>> column) & 1;
+                for (int j = i >>> 6; j < numWords; ++j) {
+                    parity ^= Long.bitCount(row[j] & packedSolution[j]);
+                }
+                if ((parity & 1) != 0) {
+                    packedSolution[i >>> 6] |= 1L << i;
                 }
             }
-            return solution;
+            return packedSolution;
         }
     }
 
@@ -419,71 +2831,11 @@ public class LFSRBreaker {
         private int currRow, currCol, finalRow, finalCol;
         private int deltaRow, deltaCol;
         private Direction currDirection;
+        // nextDirection[d.ordinal()] is the direction taken after d. Directions whose bound is exhausted
+        // get skipped over, so each iterator keeps its own copy of the cycle.
+        private Direction[] nextDirection;
         private boolean done;
 
-        // This might actually be the cleanest way to do this.
-        // Dealing with directions as integers is an annoying amount of casework.
-
-        private static final Direction UP = new Direction() {
-            public boolean movable(SquareIterator iterator) {
-                return iterator.upBound != iterator.finalUpBound;
-            }
-
-            public void setIterator(SquareIterator iterator) {
-                --iterator.upBound;
-                iterator.currRow = iterator.finalRow = iterator.upBound;
-                iterator.currCol = iterator.leftBound;
-                iterator.finalCol = iterator.rightBound;
-                iterator.deltaRow = 0;
-                iterator.deltaCol = 1;
-            }
-        };
-
-        private static final Direction DOWN = new Direction() {
-            public boolean movable(SquareIterator iterator) {
-                return iterator.downBound != iterator.finalDownBound;
-            }
-
-            public void setIterator(SquareIterator iterator) {
-                ++iterator.downBound;
-                iterator.currRow = iterator.finalRow = iterator.downBound;
-                iterator.currCol = iterator.rightBound;
-                iterator.finalCol = iterator.leftBound;
-                iterator.deltaRow = 0;
-                iterator.deltaCol = -1;
-            }
-        };
-
-        private static final Direction LEFT = new Direction() {
-            public boolean movable(SquareIterator iterator) {
-                return iterator.leftBound != iterator.finalLeftBound;
-            }
-
-            public void setIterator(SquareIterator iterator) {
-                --iterator.leftBound;
-                iterator.currRow = iterator.downBound;
-                iterator.finalRow = iterator.upBound;
-                iterator.currCol = iterator.finalCol = iterator.leftBound;
-                iterator.deltaRow = -1;
-                iterator.deltaCol = 0;
-            }
-        };
-        
-        private static final Direction RIGHT = new Direction() {
-            public boolean movable(SquareIterator iterator) {
-                return iterator.rightBound != iterator.finalRightBound;
-            }
-
-            public void setIterator(SquareIterator iterator) {
-                ++iterator.rightBound;
-                iterator.currRow = iterator.upBound;
-                iterator.finalRow = iterator.downBound;
-                iterator.currCol = iterator.finalCol = iterator.rightBound;
-                iterator.deltaRow = 1;
-                iterator.deltaCol = 0;
-            }
-        };
-
         // Here, (r, c) is the start position.
         // It is considered as already used.
         public SquareIterator(int numRows, int numCols, int r, int c) {
@@ -497,11 +2849,12 @@ public class LFSRBreaker {
             currRow = finalRow = r;
             currCol = finalCol = c;
             // Orient the directions.
-            UP.next = RIGHT;
-            RIGHT.next = DOWN;
-            DOWN.next = LEFT;
-            LEFT.next = UP;
-            currDirection = DOWN;
+            nextDirection = new Direction[Direction.values().length];
+            nextDirection[Direction.UP.ordinal()] = Direction.RIGHT;
+            nextDirection[Direction.RIGHT.ordinal()] = Direction.DOWN;
+            nextDirection[Direction.DOWN.ordinal()] = Direction.LEFT;
+            nextDirection[Direction.LEFT.ordinal()] = Direction.UP;
+            currDirection = Direction.DOWN;
             deltaRow = 1;
             deltaCol = 0;
             done = false;
@@ -519,23 +2872,83 @@ public class LFSRBreaker {
                 currRow += deltaRow;
                 currCol += deltaCol;
             } else {
-                Direction nextDirection = currDirection.next;
-                while (!nextDirection.movable(this)) {
-                    if (nextDirection == currDirection) {
+                Direction next = nextDirection[currDirection.ordinal()];
+                while (!next.movable(this)) {
+                    if (next == currDirection) {
                         done = true;
                         return returnSquare;
                     }
-                    nextDirection = nextDirection.next;
+                    next = nextDirection[next.ordinal()];
                 }
-                currDirection.next = nextDirection;
-                currDirection = nextDirection;
+                nextDirection[currDirection.ordinal()] = next;
+                currDirection = next;
                 currDirection.setIterator(this);
             }
             return returnSquare;
         }
 
-        private static abstract class Direction {
-            private Direction next;
+        // This might actually be the cleanest way to do this.
+        // Dealing with directions as integers is an annoying amount of casework.
+        private enum Direction {
+            UP {
+                public boolean movable(SquareIterator iterator) {
+                    return iterator.upBound != iterator.finalUpBound;
+                }
+
+                public void setIterator(SquareIterator iterator) {
+                    --iterator.upBound;
+                    iterator.currRow = iterator.finalRow = iterator.upBound;
+                    iterator.currCol = iterator.leftBound;
+                    iterator.finalCol = iterator.rightBound;
+                    iterator.deltaRow = 0;
+                    iterator.deltaCol = 1;
+                }
+            },
+
+            DOWN {
+                public boolean movable(SquareIterator iterator) {
+                    return iterator.downBound != iterator.finalDownBound;
+                }
+
+                public void setIterator(SquareIterator iterator) {
+                    ++iterator.downBound;
+                    iterator.currRow = iterator.finalRow = iterator.downBound;
+                    iterator.currCol = iterator.rightBound;
+                    iterator.finalCol = iterator.leftBound;
+                    iterator.deltaRow = 0;
+                    iterator.deltaCol = -1;
+                }
+            },
+
+            LEFT {
+                public boolean movable(SquareIterator iterator) {
+                    return iterator.leftBound != iterator.finalLeftBound;
+                }
+
+                public void setIterator(SquareIterator iterator) {
+                    --iterator.leftBound;
+                    iterator.currRow = iterator.downBound;
+                    iterator.finalRow = iterator.upBound;
+                    iterator.currCol = iterator.finalCol = iterator.leftBound;
+                    iterator.deltaRow = -1;
+                    iterator.deltaCol = 0;
+                }
+            },
+
+            RIGHT {
+                public boolean movable(SquareIterator iterator) {
+                    return iterator.rightBound != iterator.finalRightBound;
+                }
+
+                public void setIterator(SquareIterator iterator) {
+                    ++iterator.rightBound;
+                    iterator.currRow = iterator.upBound;
+                    iterator.finalRow = iterator.downBound;
+                    iterator.currCol = iterator.finalCol = iterator.rightBound;
+                    iterator.deltaRow = 1;
+                    iterator.deltaCol = 0;
+                }
+            };
 
             // Is it possible to move in this direction now?
             public abstract boolean movable(SquareIterator iterator);
@@ -544,6 +2957,49 @@ public class LFSRBreaker {
         }
     }
 
+    // An LFSR key with its password packed into words, so that it can be hashed and compared cheaply.
+    private static class PackedKey {
+        private final long[] password;
+        private final int tapPos, hash;
+
+        public PackedKey(LFSRKey key) {
+            password = new long[(key.binaryPassword.length + 63) >>> 6];
+            for (int i = 0; i < key.binaryPassword.length; ++i) {
+                if (key.binaryPassword[i]) {
+                    password[i >>> 6] |= 1L << i;
+                }
+            }
+            tapPos = key.tapPos;
+            hash = 31 * Arrays.hashCode(password) + tapPos;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof PackedKey)) {
+                return false;
+            }
+            PackedKey otherKey = (PackedKey) other;
+            return tapPos == otherKey.tapPos && Arrays.equals(password, otherKey.password);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // How a candidate key scored: its cost with the bound it was scored against, the trial that found it
+    // first, and whether it has been confirmed since, by a different trial or by held-out bits.
+    private static class ScoredKey {
+        private final int cost, bound;
+        private final long firstTrial;
+        private volatile boolean confirmed;
+
+        public ScoredKey(int cost, int bound, long firstTrial) {
+            this.cost = cost;
+            this.bound = bound;
+            this.firstTrial = firstTrial;
+        }
+    }
+
     // Wrapper class for LFSR parameters.
     // Contains the password and tap position.
     private static class LFSRKey {
@@ -31,6 +31,7 @@ import java.awt.FileDialog;
 import java.awt.Toolkit;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
@@ -185,6 +186,34 @@ public final class Picture implements ActionListener {
         image.setRGB(i, j, c.getRGB());
     }
 
+   /**
+     * Return the colors of all pixels, packed as 0xRRGGBB in the low 24 bits of
+     * an int, in row-major order: pixel (i, j) is at index j * width() + i.
+     * If the picture is backed by an int RGB raster, as pictures created blank are,
+     * the returned array is that raster itself, and writing to it changes the picture.
+     * Otherwise it is a copy, and setRGBArray() writes it back.
+     */
+    public int[] getRGBArray() {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        return image.getRGB(0, 0, width(), height(), null, 0, width());
+    }
+
+   /**
+     * Set the colors of all pixels from an array laid out like getRGBArray().
+     * Passing the array returned by getRGBArray() for a raster-backed picture
+     * does nothing, since the picture already holds those colors.
+     */
+    public void setRGBArray(int[] rgb) {
+        if (rgb == null) { throw new RuntimeException("can't set colors to null"); }
+        if (image.getType() == BufferedImage.TYPE_INT_RGB
+                && rgb == ((DataBufferInt) image.getRaster().getDataBuffer()).getData()) {
+            return;
+        }
+        image.setRGB(0, 0, width(), height(), rgb, 0, width());
+    }
+
    /**
      * Save the picture to a file in a standard image format.
      * The filetype must be .png or .jpg.